@@ -0,0 +1,108 @@
+package benchmarks;
+
+import model.Datastore;
+import model.Product;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures Datastore point lookups, batched lookups, index lookups, and full scans against a product table of 1k to
+ * 10M rows, w/ the products kept either on the heap or off of it. The bigger sizes need a decent heap; trim the list
+ * w/ "-p rows=1000,100000" if you're on a small box. Add "-prof gc" to compare how much garbage each table makes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class DatastoreBenchmark
+{
+    private static final int CATEGORIES = 1000;
+    private static final int BATCH_SIZE = 100;
+
+    @Param({ "1000", "100000", "1000000", "10000000" })
+    public int rows;
+
+    @Param({ "false", "true" })
+    public boolean offHeap;
+
+    private Datastore datastore;
+    private long[] ids;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        System.setProperty(Datastore.OFF_HEAP_PROPERTY, String.valueOf(offHeap));
+        datastore = new Datastore();
+        ids = new long[rows];
+        for (int i = 0; i < rows; i++)
+        {
+            ids[i] = 1_000_000 + i;
+            datastore.save(Product.create(ids[i], "Product " + i, category(i), i)).join();
+        }
+    }
+
+    @Benchmark
+    public Product pointLookup()
+    {
+        return datastore.get(Product.class, ids[ThreadLocalRandom.current().nextInt(rows)]).join();
+    }
+
+    /**
+     * Looks up a batch of random ids w/ a single getAll() round trip, the way the services' batch loaders do.
+     */
+    @Benchmark
+    public Map<Long, Product> batchLookup()
+    {
+        List<Long> batch = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++)
+            batch.add(ids[ThreadLocalRandom.current().nextInt(rows)]);
+
+        return datastore.getAll(Product.class, batch).join();
+    }
+
+    /**
+     * Copies out a single category, just like ProductService does. Each one holds roughly rows/1000 products.
+     */
+    @Benchmark
+    public List<Product> categoryLookup()
+    {
+        String category = category(ThreadLocalRandom.current().nextInt(CATEGORIES));
+        return new ArrayList<>(datastore.productsByCategory(category).join());
+    }
+
+    @Benchmark
+    public long fullScan()
+    {
+        long total = 0;
+        Collection<Product> products = datastore.get(Product.class).join();
+        for (Product product : products)
+        {
+            total += product.getPrice();
+        }
+        return total;
+    }
+
+    private static String category(int i)
+    {
+        return "Category " + (i % CATEGORIES);
+    }
+}
@@ -0,0 +1,126 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import util.Futures;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Measures the <code>Futures</code> combinators across fan-outs of 10 to 100k futures. "allOfThenJoin" is the
+ * original allOf() + stream/join() version of <code>Futures.all()</code>, kept here as the baseline to compare the
+ * counting combinator against. Run w/ "-prof gc" to see the allocation difference.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FuturesBenchmark
+{
+    @Param({ "10", "100", "1000", "10000", "100000" })
+    public int size;
+
+    private List<CompletableFuture<Integer>> completed;
+    private List<Integer> inputs;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        completed = new ArrayList<>(size);
+        inputs = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+        {
+            completed.add(CompletableFuture.completedFuture(i));
+            inputs.add(i);
+        }
+    }
+
+    /**
+     * Every input is already done by the time we combine them (e.g. cache hits).
+     */
+    @Benchmark
+    public List<Integer> allCompleted()
+    {
+        return Futures.all(completed).join();
+    }
+
+    @Benchmark
+    public List<Integer> allCompletedBaseline()
+    {
+        return allOfThenJoin(completed).join();
+    }
+
+    /**
+     * Every input is still pending when we combine them and completes afterwards, so we pay for the callbacks too.
+     */
+    @Benchmark
+    public List<Integer> allPending()
+    {
+        List<CompletableFuture<Integer>> pending = pending();
+        CompletableFuture<List<Integer>> all = Futures.all(pending);
+        completeAll(pending);
+        return all.join();
+    }
+
+    @Benchmark
+    public List<Integer> allPendingBaseline()
+    {
+        List<CompletableFuture<Integer>> pending = pending();
+        CompletableFuture<List<Integer>> all = allOfThenJoin(pending);
+        completeAll(pending);
+        return all.join();
+    }
+
+    @Benchmark
+    public List<Integer> mapAsync()
+    {
+        return Futures.mapAsync(inputs, CompletableFuture::completedFuture, 64).join();
+    }
+
+    private List<CompletableFuture<Integer>> pending()
+    {
+        List<CompletableFuture<Integer>> pending = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+        {
+            pending.add(new CompletableFuture<>());
+        }
+        return pending;
+    }
+
+    private void completeAll(List<CompletableFuture<Integer>> pending)
+    {
+        for (int i = 0; i < size; i++)
+        {
+            pending.get(i).complete(i);
+        }
+    }
+
+    /**
+     * The original implementation of <code>Futures.all()</code>.
+     */
+    private static <T> CompletableFuture<List<T>> allOfThenJoin(List<CompletableFuture<T>> futures)
+    {
+        CompletableFuture<Void> allDone = CompletableFuture.allOf(
+            futures.toArray(new CompletableFuture<?>[futures.size()]));
+        return allDone.thenApply(v -> futures
+            .stream()
+            .map(future -> future.join())
+            .collect(Collectors.toList()));
+    }
+}
@@ -0,0 +1,152 @@
+package benchmarks;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import model.Order;
+import model.Product;
+import model.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import util.OrderStatus;
+import web.InstantFormat;
+import web.ModelAdapters;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast we can serialize an order history (orders w/ their nested user and product) using our hand-written
+ * adapters vs. Gson's reflective ones. Output goes to a writer that just counts characters so we're only measuring
+ * serialization. Run w/ "-prof gc" to see the allocation difference too.
+ * <p>
+ * The reflective baseline still gets a tiny Instant adapter, since reflecting into java.time isn't allowed on newer
+ * JDKs; everything else about the models is left to reflection.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonBenchmark
+{
+    @Param({ "1", "100", "10000" })
+    public int orders;
+
+    private List<Order> history;
+    private Gson reflective;
+    private Gson adapters;
+    private Gson adaptersIso;
+    private CountingWriter out;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        User user = User.create(100, "Jeff", "Lebowski", "123 Main St", "Indianapolis", "IN", "46256");
+        Product product = Product.create(500, "Half and Half", "Food", 79);
+        history = new ArrayList<>(orders);
+        for (int i = 0; i < orders; i++)
+        {
+            Order order = new Order();
+            order.setId(1000 + i);
+            order.setUser(user);
+            order.setProduct(product);
+            order.setSalesTax(5);
+            order.setDateTime(Instant.now());
+            order.setStatus(OrderStatus.PLACED);
+            history.add(order);
+        }
+
+        reflective = new GsonBuilder().registerTypeAdapter(Instant.class, new EpochMillis().nullSafe()).create();
+        adapters = ModelAdapters.register(new GsonBuilder(), InstantFormat.EPOCH_MILLIS).create();
+        adaptersIso = ModelAdapters.register(new GsonBuilder(), InstantFormat.ISO).create();
+        out = new CountingWriter();
+    }
+
+    @Benchmark
+    public long reflective()
+    {
+        return write(reflective);
+    }
+
+    @Benchmark
+    public long adapters()
+    {
+        return write(adapters);
+    }
+
+    @Benchmark
+    public long adaptersIso()
+    {
+        return write(adaptersIso);
+    }
+
+    private long write(Gson gson)
+    {
+        out.count = 0;
+        gson.toJson(history, List.class, new JsonWriter(out));
+        return out.count;
+    }
+
+    private static class EpochMillis extends TypeAdapter<Instant>
+    {
+        @Override
+        public void write(JsonWriter out, Instant instant) throws IOException
+        {
+            out.value(instant.toEpochMilli());
+        }
+
+        @Override
+        public Instant read(JsonReader in) throws IOException
+        {
+            return Instant.ofEpochMilli(in.nextLong());
+        }
+    }
+
+    /**
+     * Throws the JSON away, keeping only a count so the JIT can't skip writing it.
+     */
+    private static class CountingWriter extends Writer
+    {
+        private long count;
+
+        @Override
+        public void write(char[] chars, int offset, int length)
+        {
+            count += length;
+        }
+
+        @Override
+        public void write(String str, int offset, int length)
+        {
+            count += length;
+        }
+
+        @Override
+        public void flush()
+        {
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+}
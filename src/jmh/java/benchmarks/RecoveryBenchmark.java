@@ -0,0 +1,108 @@
+package benchmarks;
+
+import model.Datastore;
+import model.Order;
+import model.Product;
+import model.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import util.ExecutorStrategy;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures how long a persistent Datastore takes to start back up w/ N orders on disk, either from a snapshot plus a
+ * small log tail (1% of the rows) or by replaying the whole log like we had to before snapshots.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class RecoveryBenchmark
+{
+    private static final int BATCH_SIZE = 1000;
+
+    @Param({ "10000", "100000", "1000000" })
+    public int rows;
+
+    @Param({ "true", "false" })
+    public boolean snapshot;
+
+    private Path dir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        // Only take snapshots when we say so
+        System.setProperty(Datastore.SNAPSHOT_PROPERTY, "0");
+
+        dir = Files.createTempDirectory("recovery-");
+        try (Datastore datastore = new Datastore(ExecutorStrategy.CALLER.create(), dir))
+        {
+            User user = datastore.get(User.class).join().iterator().next();
+            Product product = datastore.get(Product.class).join().iterator().next();
+
+            int tail = snapshot ? rows / 100 : 0;
+            saveOrders(datastore, user, product, rows - tail);
+            if (snapshot)
+                datastore.snapshot().join();
+            saveOrders(datastore, user, product, tail);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        try (Stream<Path> files = Files.walk(dir))
+        {
+            for (Path file : (Iterable<Path>)files.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(file);
+        }
+    }
+
+    @Benchmark
+    public Datastore recover() throws IOException
+    {
+        Datastore datastore = new Datastore(ExecutorStrategy.CALLER.create(), dir);
+        datastore.close();
+        return datastore;
+    }
+
+    private static void saveOrders(Datastore datastore, User user, Product product, int count)
+    {
+        for (int saved = 0; saved < count; saved += BATCH_SIZE)
+        {
+            List<Order> batch = new ArrayList<>(BATCH_SIZE);
+            for (int i = saved; i < Math.min(count, saved + BATCH_SIZE); i++)
+            {
+                Order order = new Order();
+                order.setUser(user);
+                order.setProduct(product);
+                order.setDateTime(Instant.now());
+                batch.add(order);
+            }
+            datastore.saveAll(batch).join();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package benchmarks;
+
+import model.Datastore;
+import model.Order;
+import model.Product;
+import model.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import services.OrderService;
+import services.ProductService;
+import services.UserService;
+import util.ExecutorStrategy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Measures the full service pipelines that sit behind our API routes, on whichever executor strategy you like.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServiceBenchmark
+{
+    private static final int CART_SIZE = 20;
+
+    @Param({ "CALLER", "COMMON_POOL", "FIXED_POOL" })
+    public ExecutorStrategy strategy;
+
+    private Datastore datastore;
+    private UserService users;
+    private OrderService orders;
+    private ProductService products;
+    private User user;
+    private Product product;
+    private List<Product> cart;
+
+    @Setup
+    public void setUp()
+    {
+        Executor executor = strategy.create();
+        datastore = new Datastore(executor);
+        users = new UserService(datastore);
+        orders = new OrderService(datastore, executor);
+        products = new ProductService(datastore, executor);
+        user = users.user(101).join();
+        product = products.product(502).join();
+        cart = new ArrayList<>(CART_SIZE);
+        for (int i = 0; i < CART_SIZE; i++)
+            cart.add(product);
+    }
+
+    @Benchmark
+    public User userLookup()
+    {
+        return users.user(100).join();
+    }
+
+    @Benchmark
+    public List<Order> orderHistory()
+    {
+        return orders.orderHistory(user).join();
+    }
+
+    /**
+     * The supply -> applySalesTax -> save chain. We delete each order afterwards so the table doesn't grow for the
+     * whole run, so this includes the cost of one delete.
+     */
+    @Benchmark
+    public Order placeOrder()
+    {
+        Order order = orders.placeOrder(user, product).join();
+        datastore.delete(Order.class, order.getId()).join();
+        return order;
+    }
+
+    /**
+     * A whole cart of products placed in one grouped write. Compare the per-op time here against CART_SIZE times
+     * placeOrder() to see what batching the cart buys you. Like placeOrder(), this includes deleting the orders.
+     */
+    @Benchmark
+    public List<Order> placeCart()
+    {
+        List<Order> placed = orders.placeOrders(user, cart).join();
+        for (Order order : placed)
+        {
+            datastore.delete(Order.class, order.getId()).join();
+        }
+        return placed;
+    }
+
+    /**
+     * The same pipeline as the "place order" API route: both lookups in parallel, then the order chain.
+     */
+    @Benchmark
+    public Order placeOrderRoute()
+    {
+        Order order = users.user(101)
+            .thenCombine(products.product(502), orders::placeOrder)
+            .thenCompose(Function.identity())
+            .join();
+        datastore.delete(Order.class, order.getId()).join();
+        return order;
+    }
+}
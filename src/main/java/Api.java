@@ -1,5 +1,6 @@
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
 import model.Datastore;
 import model.Product;
 import model.User;
@@ -7,11 +8,30 @@ import services.OrderService;
 import services.ProductService;
 import services.UserService;
 import spark.Service;
+import util.Deadline;
+import util.ExecutorStrategy;
+import util.Futures;
 import util.OrderStatus;
+import util.StageMetrics;
 import util.Utils;
+import web.AsyncRoutes;
+import web.InstantFormat;
+import web.JsonResponses;
+import web.ModelAdapters;
 
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+import static web.AsyncRoutes.async;
 
 /**
  * The entry point for our demo API that utilizes CompletableFutures to interact with "remote" services in an
@@ -19,88 +39,207 @@ import java.util.concurrent.CompletableFuture;
  */
 public class Api
 {
+    // How many orders come back per page of order history when the caller doesn't say
+    private static final int DEFAULT_PAGE_SIZE = 100;
+
+    /** The system property that sets how long (in milliseconds) each request gets before it fails w/ a 504 */
+    public static final String TIMEOUT_PROPERTY = "api.timeout.millis";
+
     public static void main(String[] args) throws Exception
     {
-        // Typically we'd set up a dependency injector to do this, but keep it simple for demo purposes
+        // Typically we'd set up a dependency injector to do this, but keep it simple for demo purposes. Routes that are
+        // wrapped in async() give their Jetty thread back as soon as they've kicked off their work rather than
+        // blocking on .join() until the whole chain of futures completes.
+        AsyncRoutes.install();
         Service webServer = Service.ignite().port(12345);
         addExceptionHandlers(webServer);
 
-        Datastore datastore = new Datastore();
+        // Choose the threads that our services run on w/ -Dexecutor.strategy=... (see ExecutorStrategy). Each one gets
+        // its own executor, so w/ a pooled strategy a backlog of blocking work in one can't eat another's threads.
+        ExecutorStrategy strategy = ExecutorStrategy.fromSystemProperty();
+        Futures.setDefaultExecutor(strategy.create());
+
+        // Persist the datastore w/ -Ddatastore.dir=/some/dir so that orders survive a restart; it's in memory otherwise
+        String dataDir = System.getProperty(Datastore.DIR_PROPERTY);
+        Datastore datastore = Utils.hasValue(dataDir)
+            ? new Datastore(strategy.create(), Paths.get(dataDir))
+            : new Datastore(strategy.create());
         UserService users = new UserService(datastore);
-        OrderService orders = new OrderService(datastore);
-        ProductService products = new ProductService(datastore);
-        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        OrderService orders = new OrderService(datastore, strategy.create());
+        ProductService products = new ProductService(datastore, strategy.create());
+        Gson gson = ModelAdapters.register(new GsonBuilder(), InstantFormat.fromSystemProperty()).create();
+        JsonResponses json = new JsonResponses(gson);
+
+        // Every request gets a deadline that's handed to each service call it makes. Once it passes, the request
+        // fails w/ a 504, and the steps of its work that are still waiting to start (see Deadline.call/guard) are
+        // skipped. Anything already running is left to finish and its result is dropped; see Deadline.bound().
+        Duration timeout = Duration.ofMillis(Long.getLong(TIMEOUT_PROPERTY, 2_000));
 
         /*
          * Typically you wouldn't just inline your lambdas for all of your API logic. You'd bundle them out into
-         * separate controllers, but I'm trying to minimize code navigation so here you go! Also, we'd generalize
-         * the conversion from POJO to JSON elsewhere, but we'll include it manually for the sake of example.
+         * separate controllers, but I'm trying to minimize code navigation so here you go! Every route streams its
+         * JSON straight to the client (compact unless you ask for "?pretty") rather than building one big string.
          */
 
         // Retrieve a single user
-        webServer.get("/user/:id", (req, res) -> users.user(req.params(":id"))
-            .thenApply(gson::toJson)
-            .join());
-
-        // List all orders by the given user
-        webServer.get("/user/:id/order", (req, res) -> users.user(req.params(":id"))
-            .thenCompose(orders::orderHistory)
-            .thenApply(gson::toJson)
-            .join());
-
-        // Place an order for the given product by the specified user
-        webServer.post("/user/:id/order/product/:pid", (req, res) -> users.user(req.params(":id"))
-            .thenCombine(
-                products.product(req.params(":pid")),
-                orders::placeOrder)
-            .thenApply(CompletableFuture::join)
-            .thenApply(gson::toJson)
-            .join());
-
-        // This is equivalent to the above route in that it generates the same value. It does, however, lose the
-        // composition and error handling capabilities of the above case. You'd need try/catch blocks to properly
-        // handle errors here whereas above you could add ".exceptionally()" to the chain of calls. But... to many
-        // this may be more readable, so it's up to you!
-        webServer.post("/user/:id/order/product/:pid/v2", (req, res) -> {
-            CompletableFuture<User> user = users.user(req.params(":id"));
-            CompletableFuture<Product> product = products.product(req.params(":pid"));
-
-            return orders.placeOrder(user.join(), product.join())
-                .thenApply(gson::toJson)
-                .join();
-        });
+        webServer.get("/user/:id", async((req, res) -> users.user(id(req.params(":id")), Deadline.after(timeout))
+            .thenApply(json.render(req, res))));
+
+        // List the orders by the given user one page at a time, oldest first. Pass "?limit=N" to size the pages and
+        // "?cursor=..." w/ the previous page's "next" value to keep going.
+        webServer.get("/user/:id/order", async((req, res) -> {
+            String limit = req.queryParams("limit");
+            int pageSize = Utils.hasValue(limit) ? Integer.parseInt(limit.trim()) : DEFAULT_PAGE_SIZE;
+            String cursor = req.queryParams("cursor");
+            Deadline deadline = Deadline.after(timeout);
+
+            return users.user(id(req.params(":id")), deadline)
+                .thenCompose(user -> orders.orderHistory(user, cursor, pageSize, deadline))
+                .thenApply(json.render(req, res));
+        }));
+
+        // Place an order for the given product by the specified user. Each hop (and the route as a whole) is timed, so
+        // you can see on /metrics where the time goes.
+        StageMetrics.Stage placeOrder = StageMetrics.stage("api.placeOrder");
+        webServer.post("/user/:id/order/product/:pid", async((req, res) -> {
+            Deadline deadline = Deadline.after(timeout);
+
+            return placeOrder.time(() -> users.user(id(req.params(":id")), deadline)
+                .thenCombine(
+                    products.product(id(req.params(":pid")), deadline),
+                    (user, product) -> orders.placeOrder(user, product, deadline))
+                .thenCompose(Function.identity()))
+                .thenApply(json.render(req, res));
+        }));
+
+        // This is equivalent to the above route in that it generates the same value. It reads more like plain old
+        // sequential code, but you lose some of the composition of the above case. Notice that we still don't block
+        // the request thread: allOf() waits for both lookups, so by the time we call join() the values are already
+        // there and join() returns immediately. To many this may be more readable, so it's up to you!
+        webServer.post("/user/:id/order/product/:pid/v2", async((req, res) -> {
+            Deadline deadline = Deadline.after(timeout);
+            CompletableFuture<User> user = users.user(id(req.params(":id")), deadline);
+            CompletableFuture<Product> product = products.product(id(req.params(":pid")), deadline);
+
+            return placeOrder.time(() -> CompletableFuture.allOf(user, product)
+                .thenCompose(bothDone -> orders.placeOrder(user.join(), product.join(), deadline)))
+                .thenApply(json.render(req, res));
+        }));
+
+        // Place an order for every product in the user's cart at once. The body is a JSON array of product ids (e.g.
+        // ["500", "502", "502"]). The product lookups all go out together, so they get batched into a round trip or
+        // two, and the orders themselves are saved in a single grouped write.
+        webServer.post("/user/:id/order/products", async((req, res) -> {
+            Deadline deadline = Deadline.after(timeout);
+            List<CompletableFuture<Product>> cart = new ArrayList<>();
+            for (String productId : productIds(gson, req.body()))
+            {
+                cart.add(products.product(id(productId), deadline));
+            }
+
+            return users.user(id(req.params(":id")), deadline)
+                .thenCombine(Futures.all(cart), (user, items) -> orders.placeOrders(user, items, deadline))
+                .thenCompose(Function.identity())
+                .thenApply(json.render(req, res));
+        }));
 
         // Look up a specific product
-        webServer.get("/product/:id", (req, res) -> products.product(req.params(":id"))
-            .thenApply(gson::toJson)
-            .join());
+        webServer.get("/product/:id", async((req, res) -> products
+            .product(id(req.params(":id")), Deadline.after(timeout))
+            .thenApply(json.render(req, res))));
 
         // List all products in the given category
-        webServer.get("/product/category/:category", (req, res) -> products.productsByCategory(req.params(":category"))
-            .thenApply(gson::toJson)
-            .join());
+        webServer.get("/product/category/:category", async((req, res) -> products
+            .productsByCategory(req.params(":category"), Deadline.after(timeout))
+            .thenApply(json.render(req, res))));
 
         // Look up a specific order
-        webServer.get("/order/:id", (req, res) -> orders.order(req.params(":id"))
-            .thenApply(gson::toJson)
-            .join());
+        webServer.get("/order/:id", async((req, res) -> orders.order(id(req.params(":id")), Deadline.after(timeout))
+            .thenApply(json.render(req, res))));
 
         // Update the status on a specific order
-        webServer.post("/order/:id/status/:status", (req, res) -> {
+        webServer.post("/order/:id/status/:status", async((req, res) -> {
             OrderStatus status = OrderStatus.valueOf(req.params(":status"));
-            return orders.updateOrderStatus(req.params(":id"), status)
-                .thenApply(gson::toJson)
-                .join();
+            return orders.updateOrderStatus(id(req.params(":id")), status, Deadline.after(timeout))
+                .thenApply(json.render(req, res));
+        }));
+
+        // See how much work caching and request coalescing (each cache's "coalesced" count) are saving us on our
+        // hottest lookups, and where the time goes in our pipelines
+        webServer.get("/metrics", (req, res) -> {
+            Map<String, Object> metrics = new LinkedHashMap<>();
+            metrics.put("userBatches", users.batches().stats());
+            metrics.put("productBatches", products.batches().stats());
+            metrics.put("userHedging", users.hedging().stats());
+            metrics.put("productHedging", products.hedging().stats());
+            metrics.put("userBulkhead", users.bulkhead().stats());
+            metrics.put("productBulkhead", products.bulkhead().stats());
+            metrics.put("orderBulkhead", orders.bulkhead().stats());
+            metrics.put("userCache", users.cache().stats());
+            metrics.put("productCache", products.cache().stats());
+            metrics.put("categoryCache", products.categoryCache().stats());
+            metrics.put("orderCache", orders.cache().stats());
+            metrics.put("log", datastore.logStats());
+            metrics.put("datastoreBreaker", datastore.breaker().stats());
+            metrics.put("stages", StageMetrics.stats());
+            return gson.toJson(metrics);
         });
 
-        System.out.println("[Api] Web server running. Press ENTER to quit.");
+        System.out.println("[Api] Web server running on " + strategy + " threads. Press ENTER to quit.");
         System.in.read();
         System.out.println("[Api] Web server shut down. Bye bye!");
         webServer.stop();
+        datastore.close();
     }
 
     /**
-     * Rather than the HTML that Spark spits out by default, handle errors accordingly.
+     * Turns an id from a URL or request body into the long that everything behind the API uses. This is the only
+     * place that ids are ever strings. Something that isn't a number can't be the id of anything, so it's treated
+     * just like an id that doesn't exist.
+     * @param id The id as it came in
+     * @return The id
+     * @throws NoSuchElementException If the id isn't a number
+     */
+    private static long id(String id)
+    {
+        try
+        {
+            return Long.parseLong(id.trim());
+        }
+        catch (NumberFormatException e)
+        {
+            // No cause on purpose; errors are reported by their root cause and we want a 404, not a 400
+            throw new NoSuchElementException("No such id " + id);
+        }
+    }
+
+    /**
+     * Parses the body of a bulk order request.
+     * @param gson The Gson config to parse w/
+     * @param body The request body, which should be a JSON array of product ids
+     * @return The product ids
+     * @throws IllegalArgumentException If the body isn't an array of ids
+     */
+    private static String[] productIds(Gson gson, String body)
+    {
+        try
+        {
+            String[] ids = gson.fromJson(body, String[].class);
+            if (ids == null)
+                throw new IllegalArgumentException("Expected a JSON array of product ids");
+
+            return ids;
+        }
+        catch (JsonParseException e)
+        {
+            // No cause on purpose; errors are reported by their root cause and we want a 400, not a 500
+            throw new IllegalArgumentException("Expected a JSON array of product ids");
+        }
+    }
+
+    /**
+     * Rather than the HTML that Spark spits out by default, handle errors accordingly. These handlers also apply to
+     * async routes whose futures complete exceptionally.
      * @param webServer The web server config to update
      */
     private static void addExceptionHandlers(Service webServer)
@@ -114,6 +253,21 @@ public class Api
                 res.status(404);
                 res.body("{ status: 404, message: \"The specified resource ain't there...\"");
             }
+            else if (root instanceof IllegalArgumentException)
+            {
+                res.status(400);
+                res.body("{ status: 400, message: \"That request doesn't make sense...\"");
+            }
+            else if (root instanceof RejectedExecutionException)
+            {
+                res.status(503);
+                res.body("{ status: 503, message: \"We're swamped right now, try again in a bit...\"");
+            }
+            else if (root instanceof TimeoutException)
+            {
+                res.status(504);
+                res.body("{ status: 504, message: \"That took way too long...\"");
+            }
             else
             {
                 res.status(500);
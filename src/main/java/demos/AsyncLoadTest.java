@@ -0,0 +1,124 @@
+package demos;
+
+import spark.Service;
+import util.Futures;
+import web.AsyncRoutes;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static web.AsyncRoutes.async;
+
+/**
+ * Compares how many requests a small Jetty pool can keep in flight when routes .join() their futures vs. when they
+ * hand them off w/ AsyncRoutes. Both routes call the same "slow backend" whose futures complete on a timer, so the
+ * only difference is whether or not a Jetty thread sits around waiting for them.
+ * Run its main() (it needs port 12346 free) and compare the two lines it prints; there's no pass or fail.
+ */
+public class AsyncLoadTest
+{
+    private static final int PORT = 12346;
+    private static final int JETTY_THREADS = 32;
+    private static final int CONCURRENT_REQUESTS = 400;
+    private static final long BACKEND_LATENCY_MILLIS = 250;
+
+    private static final ScheduledExecutorService backend = Executors.newSingleThreadScheduledExecutor();
+    private static final AtomicInteger inFlight = new AtomicInteger();
+    private static final AtomicInteger peakInFlight = new AtomicInteger();
+
+    public static void main(String[] args) throws Exception
+    {
+        AsyncRoutes.install();
+        Service webServer = Service.ignite().port(PORT).threadPool(JETTY_THREADS);
+
+        // Before: the request thread is parked until the backend responds
+        webServer.get("/blocking", (req, res) -> slowBackend().join());
+
+        // After: the request thread is released as soon as the backend call is on its way
+        webServer.get("/async", async((req, res) -> slowBackend()));
+
+        webServer.awaitInitialization();
+        System.out.println(String.format("> %s concurrent requests, %s Jetty threads, %sms backend latency",
+            CONCURRENT_REQUESTS, JETTY_THREADS, BACKEND_LATENCY_MILLIS));
+
+        // Warm up both paths so that we're not timing class loading and JIT
+        hammer("/blocking", JETTY_THREADS);
+        hammer("/async", JETTY_THREADS);
+
+        report("blocking", hammer("/blocking", CONCURRENT_REQUESTS));
+        report("async", hammer("/async", CONCURRENT_REQUESTS));
+
+        webServer.stop();
+        backend.shutdown();
+    }
+
+    /**
+     * Pretends to call some remote service. The future completes after a delay, but no thread is tied up waiting.
+     */
+    private static CompletableFuture<String> slowBackend()
+    {
+        peakInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+
+        CompletableFuture<String> response = new CompletableFuture<>();
+        backend.schedule(() -> {
+            inFlight.decrementAndGet();
+            response.complete("OK");
+        }, BACKEND_LATENCY_MILLIS, TimeUnit.MILLISECONDS);
+        return response;
+    }
+
+    /**
+     * Fires the given number of simultaneous GET requests at the path and waits for all of them to finish.
+     * @return How long it took (in milliseconds)
+     */
+    private static long hammer(String path, int requests) throws Exception
+    {
+        peakInFlight.set(0);
+        ExecutorService clients = Executors.newFixedThreadPool(requests);
+        URL url = new URL("http://localhost:" + PORT + path);
+
+        long start = System.nanoTime();
+        List<CompletableFuture<Integer>> responses = new ArrayList<>(requests);
+        for (int i = 0; i < requests; i++)
+        {
+            responses.add(CompletableFuture.supplyAsync(() -> get(url), clients));
+        }
+        Futures.all(responses).join();
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        clients.shutdown();
+        return elapsed;
+    }
+
+    private static int get(URL url)
+    {
+        try
+        {
+            HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+            try (InputStream body = connection.getInputStream())
+            {
+                while (body.read() != -1) { /* drain it */ }
+            }
+            return connection.getResponseCode();
+        }
+        catch (Exception e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void report(String mode, long elapsedMillis)
+    {
+        System.out.println(String.format("> %-8s: %4sms total, peak in-flight backend calls = %s (%.0f req/sec)",
+            mode, elapsedMillis, peakInFlight.get(), CONCURRENT_REQUESTS * 1000.0 / elapsedMillis));
+    }
+}
@@ -13,6 +13,7 @@ public class CompletableFutureMultiple
     public static void main(String [] args) throws Exception
     {
         demoAll();
+        demoAllIsolated();
     }
 
     private static void demoAll() throws Exception
@@ -61,6 +62,21 @@ public class CompletableFutureMultiple
         System.out.println("> demoAllBest: All threads complete!");
     }
 
+    private static void demoAllIsolated() throws Exception
+    {
+        // Same as demoAllBest, but the sleepy work runs on its own bounded pool rather than the common pool
+        CompletableFuture<List<Integer>> all = Futures.allAsync(Demo.BLOCKING_POOL,
+            () -> Demo.randomIntIntensive(1, 3),
+            () -> Demo.randomIntIntensive(1, 3),
+            () -> Demo.randomIntIntensive(1, 3),
+            () -> Demo.randomIntIntensive(1, 3),
+            () -> Demo.randomIntIntensive(1, 3));
+
+        System.out.println("> demoAllIsolated: All threads dispatched. Waiting for everything.");
+        all.join().forEach(num -> System.out.println("> demoAllIsolated: Value = " + num));
+        System.out.println("> demoAllIsolated: All threads complete!");
+    }
+
     private static void demoAny() throws Exception
     {
         CompletableFuture<Object> any = CompletableFuture.anyOf(
@@ -0,0 +1,210 @@
+package demos;
+
+import model.BusinessObject;
+import model.Datastore;
+import model.Product;
+import util.Futures;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Hammers a single Datastore from a bunch of threads at once to prove that concurrent writes don't lose updates or
+ * leave the indexes out of sync w/ the tables. It then measures how insert throughput scales as we add threads.
+ * Run its main() after any change to the Datastore's locking; it exits w/ a non-zero status if a check fails.
+ */
+public class DatastoreStress
+{
+    private static final String[] CATEGORIES = { "Food", "Stuff", "Junk", "Treasure" };
+    private static final int INSERTS_PER_THREAD = 50_000;
+    private static final int SHARED_PRODUCTS = 64;
+    private static final long SHARED_IDS = 1_000_000_000L; // Way past any id that the datastore will hand out here
+    private static final int UPDATES_PER_THREAD = 100_000;
+
+    public static void main(String[] args) throws Exception
+    {
+        int cores = Runtime.getRuntime().availableProcessors();
+        boolean passed = checkNoLostInserts(cores * 2) & checkIndexesAgree(cores * 2);
+
+        for (int threads = 1; threads <= cores; threads *= 2)
+        {
+            measureThroughput(threads);
+        }
+
+        System.out.println(passed ? "> All checks passed!" : "> FAILED. See above for details.");
+        if (!passed)
+        {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Every thread inserts a bunch of brand new products. When the dust settles, every single one of them must be in
+     * the table under its own unique id.
+     */
+    private static boolean checkNoLostInserts(int threads) throws Exception
+    {
+        Datastore datastore = new Datastore();
+        int before = datastore.get(Product.class).join().size();
+
+        List<List<Product>> saved = runConcurrently(threads, thread -> {
+            List<Product> products = new ArrayList<>(INSERTS_PER_THREAD);
+            for (int i = 0; i < INSERTS_PER_THREAD; i++)
+            {
+                String category = CATEGORIES[i % CATEGORIES.length];
+                products.add(datastore.save(Product.create(BusinessObject.NO_ID, "Stress " + thread + "-" + i, category, i)).join());
+            }
+            return products;
+        });
+
+        Set<Long> ids = new HashSet<>();
+        saved.forEach(products -> products.forEach(product -> ids.add(product.getId())));
+
+        int expected = threads * INSERTS_PER_THREAD;
+        int tableSize = datastore.get(Product.class).join().size() - before;
+        int indexed = 0;
+        for (String category : CATEGORIES)
+        {
+            indexed += datastore.productsByCategory(category).join().size();
+        }
+
+        System.out.println(String.format(
+            "> Inserted %s products from %s threads: %s unique ids, %s in table, %s indexed",
+            expected, threads, ids.size(), tableSize, indexed - before));
+
+        boolean passed = (ids.size() == expected) && (tableSize == expected) && (indexed - before == expected);
+        return report("no lost inserts", passed);
+    }
+
+    /**
+     * Every thread fights over the same handful of products, re-categorizing and deleting them at random. Once we're
+     * done, each surviving product must be indexed under its current category and nowhere else.
+     */
+    private static boolean checkIndexesAgree(int threads) throws Exception
+    {
+        Datastore datastore = new Datastore();
+        for (int i = 0; i < SHARED_PRODUCTS; i++)
+        {
+            datastore.save(Product.create(SHARED_IDS + i, "Shared " + i, CATEGORIES[0], i)).join();
+        }
+
+        runConcurrently(threads, thread -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < UPDATES_PER_THREAD; i++)
+            {
+                long id = SHARED_IDS + random.nextInt(SHARED_PRODUCTS);
+                if (random.nextInt(10) == 0)
+                {
+                    datastore.delete(Product.class, id).exceptionally(t -> null).join();
+                }
+                else
+                {
+                    String category = CATEGORIES[random.nextInt(CATEGORIES.length)];
+                    datastore.save(Product.create(id, "Shared", category, i)).join();
+                }
+            }
+            return null;
+        });
+
+        int mismatches = 0;
+        int indexed = 0;
+        Set<Long> sharedIds = new HashSet<>();
+        for (Product product : datastore.get(Product.class).join())
+        {
+            if (product.getId() >= SHARED_IDS)
+            {
+                sharedIds.add(product.getId());
+                if (!datastore.productsByCategory(product.getCategory()).join().contains(product))
+                    mismatches++;
+            }
+        }
+        for (String category : CATEGORIES)
+        {
+            Collection<Product> products = datastore.productsByCategory(category).join();
+            for (Product product : products)
+            {
+                if (product.getId() >= SHARED_IDS)
+                {
+                    indexed++;
+                    if (!category.equals(product.getCategory()))
+                        mismatches++;
+                }
+            }
+        }
+
+        System.out.println(String.format(
+            "> %s threads made %s conflicting writes: %s products in table, %s indexed, %s mismatches",
+            threads, threads * UPDATES_PER_THREAD, sharedIds.size(), indexed, mismatches));
+
+        return report("indexes agree w/ tables", mismatches == 0 && indexed == sharedIds.size());
+    }
+
+    /**
+     * Times how long it takes the given number of threads to insert a fixed number of products each.
+     */
+    private static void measureThroughput(int threads) throws Exception
+    {
+        Datastore datastore = new Datastore();
+        long start = System.nanoTime();
+        runConcurrently(threads, thread -> {
+            for (int i = 0; i < INSERTS_PER_THREAD; i++)
+            {
+                datastore.save(Product.create(BusinessObject.NO_ID, "Throughput", CATEGORIES[i % CATEGORIES.length], i)).join();
+            }
+            return null;
+        });
+        double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+
+        double insertsPerSecond = threads * INSERTS_PER_THREAD / seconds;
+        System.out.println(String.format("> %2d threads: %,.0f inserts/sec", threads, insertsPerSecond));
+    }
+
+    /**
+     * Starts the given number of threads, lines them up at the starting gate, and lets them all go at once.
+     */
+    private static <T> List<T> runConcurrently(int threads, Worker<T> worker) throws Exception
+    {
+        ExecutorService threadPool = Executors.newFixedThreadPool(threads);
+        CountDownLatch startingGate = new CountDownLatch(1);
+        List<CompletableFuture<T>> results = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++)
+        {
+            int thread = i;
+            results.add(CompletableFuture.supplyAsync(() -> {
+                try
+                {
+                    startingGate.await();
+                }
+                catch (InterruptedException e)
+                {
+                    throw new IllegalStateException(e);
+                }
+                return worker.run(thread);
+            }, threadPool));
+        }
+
+        startingGate.countDown();
+        List<T> values = Futures.all(results).join();
+        threadPool.shutdown();
+        return values;
+    }
+
+    private static boolean report(String check, boolean passed)
+    {
+        System.out.println(String.format("> %s: %s", check, passed ? "PASSED" : "FAILED"));
+        return passed;
+    }
+
+    private interface Worker<T>
+    {
+        T run(int thread);
+    }
+}
@@ -1,5 +1,8 @@
 package demos;
 
+import util.ExecutorStrategy;
+
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ThreadLocalRandom;
 
 /**
@@ -9,6 +12,12 @@ public class Demo
 {
     private static final String[] NAMES = { "Rob", "Doug", "John" };
 
+    /**
+     * A small pool of its own for our "intensive" (read: sleepy) work. Since these threads spend their lives blocked,
+     * keeping them off of ForkJoinPool.commonPool() means they can't starve anything that's actually using the CPU.
+     */
+    public static final ExecutorService BLOCKING_POOL = ExecutorStrategy.boundedPool("blocking-", 5);
+
     /**
      * Puts the current thread to sleep for the given amount of time, gobbling up any interrupt exceptions
      * @param millis The number of milliseconds to sleep for
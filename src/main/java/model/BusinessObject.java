@@ -1,7 +1,14 @@
 package model;
 
+/**
+ * A record that lives in the datastore. Ids are plain longs from the tables on up; the only place they're ever
+ * strings is at the edge of the API (URLs and JSON).
+ */
 public interface BusinessObject
 {
-    String getId();
-    void setId(String id);
+    /** The id of a record that hasn't been saved yet (real ids are always positive) */
+    long NO_ID = 0;
+
+    long getId();
+    void setId(long id);
 }
@@ -0,0 +1,289 @@
+package model;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A concurrent hash map from primitive long keys to values. Each segment is an open-addressing (linear probing) table
+ * made of a plain long[] of keys and an array of values, so there are no Entry objects, no boxed keys, and no
+ * hashCode()/equals() calls on the way to a value.
+ * <p>
+ * Writers lock only their key's segment (like Stripes). Readers never lock: a bucket's key is written before its
+ * value is published, and once a key is in a bucket it never moves, so a reader that sees a value can trust the key
+ * next to it. Removed values leave a tombstone behind so that probe chains stay intact; they're cleared out the next
+ * time the segment is rebuilt, which always happens into a brand new table.
+ * @param <V> The type of value stored
+ */
+class ConcurrentLongMap<V> implements LongMap<V>
+{
+    // Marks a bucket whose key was removed; an empty bucket simply has no value
+    private static final Object TOMBSTONE = new Object();
+
+    private static final int MIN_CAPACITY = 16;
+
+    private final Segment[] segments;
+    private final int shift;
+
+    /**
+     * Creates enough segments to keep write contention low on this machine (a few per core, like Stripes).
+     */
+    ConcurrentLongMap()
+    {
+        int count = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 4 - 1)) << 1;
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++)
+            segments[i] = new Segment();
+
+        // The top bits of the hash pick the segment and the bottom bits pick the bucket, so the two don't overlap
+        shift = 32 - Integer.numberOfTrailingZeros(count);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(long key)
+    {
+        int hash = hash(key);
+        Table table = segmentFor(hash).table;
+        for (int i = hash & table.mask; ; i = (i + 1) & table.mask)
+        {
+            Object value = table.values.get(i);
+            if (value == null)
+                return null;
+            if (table.keys[i] == key)
+                return (value == TOMBSTONE) ? null : (V)value;
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value)
+    {
+        if (value == null)
+            throw new NullPointerException();
+
+        int hash = hash(key);
+        Segment segment = segmentFor(hash);
+        synchronized (segment)
+        {
+            Table table = segment.table;
+            int i = hash & table.mask;
+            for (Object current = table.values.get(i); current != null; current = table.values.get(i))
+            {
+                if (table.keys[i] == key)
+                {
+                    table.values.set(i, value);
+                    if (current == TOMBSTONE)
+                    {
+                        segment.size++;
+                        return null;
+                    }
+                    return (V)current;
+                }
+                i = (i + 1) & table.mask;
+            }
+
+            // A brand new key. Rebuild first if this would leave the table more than half full (tombstones count,
+            // since they make probes just as long as live keys do).
+            if ((segment.used + 1) * 2 > table.mask + 1)
+            {
+                segment.rebuild(segment.size + 1);
+                put(key, value);
+                return null;
+            }
+            table.keys[i] = key;
+            table.values.set(i, value);
+            segment.used++;
+            segment.size++;
+            return null;
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V remove(long key)
+    {
+        int hash = hash(key);
+        Segment segment = segmentFor(hash);
+        synchronized (segment)
+        {
+            Table table = segment.table;
+            for (int i = hash & table.mask; ; i = (i + 1) & table.mask)
+            {
+                Object current = table.values.get(i);
+                if (current == null)
+                    return null;
+                if (table.keys[i] == key)
+                {
+                    if (current == TOMBSTONE)
+                        return null;
+
+                    table.values.set(i, TOMBSTONE);
+                    segment.size--;
+                    return (V)current;
+                }
+            }
+        }
+    }
+
+    @Override
+    public int size()
+    {
+        int size = 0;
+        for (Segment segment : segments)
+        {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    @Override
+    public Collection<V> values()
+    {
+        return new AbstractCollection<V>()
+        {
+            @Override
+            public Iterator<V> iterator()
+            {
+                return new Values();
+            }
+
+            @Override
+            public int size()
+            {
+                return ConcurrentLongMap.this.size();
+            }
+        };
+    }
+
+    private Segment segmentFor(int hash)
+    {
+        return segments[hash >>> shift & (segments.length - 1)];
+    }
+
+    /**
+     * Our ids are sequential, so multiply by the golden ratio (Fibonacci hashing) to scatter them across the whole
+     * int range before we carve it up into segments and buckets.
+     */
+    private static int hash(long key)
+    {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int)(hash ^ (hash >>> 32));
+    }
+
+    /**
+     * One independently locked slice of the map.
+     */
+    private static class Segment
+    {
+        // Replaced wholesale (never resized in place) so readers always see a consistent table
+        private volatile Table table = new Table(MIN_CAPACITY);
+
+        // Live keys, and live keys + tombstones. Only written while holding the segment's monitor.
+        private volatile int size;
+        private int used;
+
+        /**
+         * Copies every live key into a fresh table w/ room to grow, leaving the tombstones behind.
+         */
+        private void rebuild(int expected)
+        {
+            int capacity = MIN_CAPACITY;
+            while (capacity < expected * 4)
+                capacity <<= 1;
+
+            Table old = table;
+            Table rebuilt = new Table(capacity);
+            for (int i = 0; i <= old.mask; i++)
+            {
+                Object value = old.values.get(i);
+                if (value == null || value == TOMBSTONE)
+                    continue;
+
+                int j = hash(old.keys[i]) & rebuilt.mask;
+                while (rebuilt.values.get(j) != null)
+                    j = (j + 1) & rebuilt.mask;
+
+                rebuilt.keys[j] = old.keys[i];
+                rebuilt.values.set(j, value);
+            }
+            table = rebuilt;
+            used = size;
+        }
+    }
+
+    private static class Table
+    {
+        private final long[] keys;
+        private final AtomicReferenceArray<Object> values;
+        private final int mask;
+
+        private Table(int capacity)
+        {
+            keys = new long[capacity];
+            values = new AtomicReferenceArray<>(capacity);
+            mask = capacity - 1;
+        }
+    }
+
+    /**
+     * Walks every segment's current table. Like ConcurrentHashMap's iterators, it never throws a
+     * ConcurrentModificationException and may or may not see changes made while it's walking.
+     */
+    private class Values implements Iterator<V>
+    {
+        private int segment = -1;
+        private Table table;
+        private int bucket;
+        private V next;
+
+        private Values()
+        {
+            advance();
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return next != null;
+        }
+
+        @Override
+        public V next()
+        {
+            if (next == null)
+                throw new NoSuchElementException();
+
+            V value = next;
+            advance();
+            return value;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void advance()
+        {
+            next = null;
+            while (true)
+            {
+                if (table == null || bucket > table.mask)
+                {
+                    if (++segment >= segments.length)
+                        return;
+
+                    table = segments[segment].table;
+                    bucket = 0;
+                    continue;
+                }
+
+                Object value = table.values.get(bucket++);
+                if (value != null && value != TOMBSTONE)
+                {
+                    next = (V)value;
+                    return;
+                }
+            }
+        }
+    }
+}
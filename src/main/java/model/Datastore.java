@@ -1,29 +1,99 @@
 package model;
 
+import util.CircuitBreaker;
+import util.ExecutorStrategy;
 import util.Futures;
 import util.OrderStatus;
-import util.Utils;
 
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.time.Instant;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.Objects;
-import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
  * A mock datastore that serves as our "database" of users, products, and orders. I realize this is terrible, but this
  * is not a talk about good data access patterns, so keep it simple :)
+ * <p>
+ * It is, however, safe to hammer from lots of request threads at once. Reads never block. Writes lock only the stripe
+ * that their record id hashes to, so writes to different records proceed in parallel while writes to the same record
+ * can't leave a table and its indexes disagreeing with each other.
+ * <p>
+ * Give it a directory and it'll also log every change to disk (see WriteAheadLog) so that it comes back the same after
+ * a restart. A change is only applied in memory (and listeners only hear about it) once it's durable, so a write that
+ * never makes it to disk never shows up for readers either.
+ * <p>
+ * Set "datastore.products.offheap" to keep the product catalog (our biggest table by far) in direct memory instead
+ * of on the heap; see OffHeapProductTable.
  */
-public class Datastore
+public class Datastore implements Closeable
 {
-    // Pretend that these are the "tables" in our database
-    private Set<User> users;
-    private Set<Order> orders;
-    private Set<Product> products;
+    /** The system property that names the directory to persist the datastore in (in-memory only if unset) */
+    public static final String DIR_PROPERTY = "datastore.dir";
+
+    /** The system property that sets how often (in seconds) a persistent datastore takes a snapshot (0 to never) */
+    public static final String SNAPSHOT_PROPERTY = "datastore.snapshot.seconds";
+
+    /** The system property that, when "true", stores products off-heap rather than as regular objects */
+    public static final String OFF_HEAP_PROPERTY = "datastore.products.offheap";
+
+    private static final CompletableFuture<Void> DURABLE = Futures.of(null);
+
+    // Pretend that these are the "tables" in our database. Each one is keyed by the record's (primitive) id so that
+    // looking up, replacing, or removing a single record doesn't require a scan of the whole table.
+    private LongMap<User> users;
+    private LongMap<Order> orders;
+    private LongMap<Product> products;
+
+    // Secondary indexes that keep our "give me all of the X for Y" queries from scanning an entire table
+    private Index<Order, Long> ordersByUser;
+    private Index<Product, String> productsByCategory;
+
+    // The thread(s) that our "remote" operations run on
+    private Executor executor;
+
+    // Guards writes so that a record's table entry and index entries are always updated together
+    private Stripes stripes;
+
+    // Fails every operation fast rather than piling more work onto us while we're failing (e.g. the disk is full)
+    private CircuitBreaker breaker;
 
     // Used to generate ids for new items.
-    private long nextId;
+    private AtomicLong nextId;
+
+    // Anybody who wants to hear about records being saved/deleted (e.g. caches that need invalidating)
+    private List<Consumer<BusinessObject>> listeners;
+
+    // Where every change is recorded so we can survive a restart (null if we're only in memory)
+    private WriteAheadLog log;
+
+    // Where our snapshots and log live, plus the thread that takes our snapshots (all null if we're only in memory)
+    private Path dir;
+    private ScheduledExecutorService snapshotter;
+    private volatile long snapshotsAtAppends;
+    private LongAdder snapshots = new LongAdder();
 
     /**
      * Retrieves a record with the given id
@@ -31,45 +101,147 @@ public class Datastore
      * @param id The id to look up
      * @return A future that resolves w/ the matching record
      */
-    public <T extends BusinessObject> CompletableFuture<T> get(Class<T> modelType, String id)
+    public <T extends BusinessObject> CompletableFuture<T> get(Class<T> modelType, long id)
+    {
+        return breaker.call(() -> table(modelType)
+            .thenApplyAsync(table -> {
+                T model = table.get(id);
+                if (model == null)
+                    throw new NoSuchElementException(modelType.getSimpleName() + " " + id + " does not exist");
+
+                return model;
+            }, executor));
+    }
+
+    /**
+     * Retrieves a whole batch of records in one round trip rather than one get() per id.
+     * @param modelType The type of model (i.e. table) that the records belong to
+     * @param ids The ids to look up
+     * @return A future that resolves w/ the matching records keyed by id; ids that don't exist are simply left out
+     */
+    public <T extends BusinessObject> CompletableFuture<Map<Long, T>> getAll(Class<T> modelType,
+                                                                           Collection<Long> ids)
     {
-        return get(modelType)
-            .thenApply(tableModels -> tableModels.stream()
-                .filter(model -> Objects.equals(model.getId(), id))
-                .findFirst()
-                .get());
+        return breaker.call(() -> table(modelType)
+            .thenApplyAsync(table -> {
+                Map<Long, T> found = new HashMap<>();
+                for (Long id : ids)
+                {
+                    T model = (id == null) ? null : table.get(id);
+                    if (model != null)
+                        found.put(id, model);
+                }
+                return found;
+            }, executor));
     }
 
     /**
-     * Retrieves an iterable set of all instances of the given record type.
+     * Retrieves all instances of the given record type. The resulting collection is a read-only, live view of the
+     * table, so it will reflect any records saved or deleted after the fact. Copy it if you need a stable snapshot.
      * @param modelType The type of record whose instances you want
      * @return A future that completes w/ the matching records
      */
-    @SuppressWarnings("unchecked")
-    public <T extends BusinessObject> CompletableFuture<Set<T>> get(Class<T> modelType)
+    public <T extends BusinessObject> CompletableFuture<Collection<T>> get(Class<T> modelType)
     {
-        if (modelType == User.class) return Futures.of((Set<T>)users);
-        if (modelType == Order.class) return Futures.of((Set<T>)orders);
-        if (modelType == Product.class) return Futures.of((Set<T>)products);
+        return breaker.call(() -> table(modelType)
+            .thenApplyAsync(table -> Collections.unmodifiableCollection(table.values()), executor));
+    }
 
-        return Futures.error(new IllegalArgumentException(modelType + " is not a persistent type"));
+    /**
+     * Retrieves all of the orders placed by the given user, oldest first. This is served by an index, so the cost
+     * is proportional to the user's order count, not the total number of orders.
+     * @param userId The id of the user whose orders you want
+     * @return A future that completes w/ a read-only, live view of the user's orders sorted by date/time
+     */
+    public CompletableFuture<Collection<Order>> ordersByUser(long userId)
+    {
+        return breaker.call(() -> Futures.supplyAsync(() -> ordersByUser.bucket(userId), executor));
+    }
+
+    /**
+     * Retrieves one page of the orders placed by the given user, oldest first. This seeks straight to the starting
+     * point in the index and stops after the page is full, so it costs the same no matter how deep into a long order
+     * history you are.
+     * @param userId The id of the user whose orders you want
+     * @param afterDateTime The date/time of the last order on the previous page (ignored if afterId is NO_ID)
+     * @param afterId The id of the last order on the previous page, or NO_ID to start from the user's first order
+     * @param limit The most orders to return
+     * @return A future that completes w/ up to limit of the user's orders that come after the given one
+     */
+    public CompletableFuture<List<Order>> ordersByUser(long userId, Instant afterDateTime, long afterId, int limit)
+    {
+        return breaker.call(() -> Futures.supplyAsync(
+            () -> ordersByUser.page(userId, afterDateTime, afterId, limit), executor));
+    }
+
+    /**
+     * Retrieves all of the products in the given category. This is served by an index, so the cost is proportional
+     * to the number of products in that category, not the size of the whole catalog.
+     * @param category The category to look up (e.g. "Food")
+     * @return A future that completes w/ a read-only, live view of the matching products
+     */
+    public CompletableFuture<Collection<Product>> productsByCategory(String category)
+    {
+        return breaker.call(() -> Futures.supplyAsync(() -> productsByCategory.bucket(category), executor));
     }
 
     /**
      * Saves a new or existing record to the database. If this is a new record, we'll assign a unique id to it before
-     * saving it. When the future completes, you'll be able to see the generated id.
+     * saving it. When the future completes, you'll be able to see the generated id. If we're persistent, it also
+     * means that the record has made it to disk.
      * @param model The record to save
      * @return A future that completes w/ the now-saved record
      */
-    @SuppressWarnings("unchecked")
     public <T extends BusinessObject> CompletableFuture<T> save(T model)
     {
-        return get(model.getClass())
-            .thenApply(tableModels -> {
+        return breaker.call(() -> table(model)
+            .thenComposeAsync(table -> {
                 assignId(model);
-                ((Set<T>)tableModels).add(model);
-                return model;
-            });
+                CompletableFuture<Void> durable = write(model.getId(), Records.save(model), () -> {
+                    store(table, model);
+                    return model;
+                });
+                return whenDurable(durable, model);
+            }, executor));
+    }
+
+    /**
+     * Saves a whole group of new or existing records in a single round trip rather than one save() apiece. New
+     * records get their ids assigned just like they would w/ save(). The group is logged as one change and applied
+     * in one go once it's durable, so it's all or nothing: if the future fails, none of the records were saved and
+     * it's safe to try the whole group again. Only the stripes of the records in the group are held while it goes in.
+     * @param models The records to save (they may be of different types, and later ones may point to earlier ones)
+     * @return A future that completes w/ the now-saved records, in the same order
+     */
+    public <T extends BusinessObject> CompletableFuture<List<T>> saveAll(List<T> models)
+    {
+        return breaker.call(() -> {
+            // Make sure that every record has somewhere to go before we write any of them
+            List<CompletableFuture<LongMap<T>>> tables = new ArrayList<>(models.size());
+            for (T model : models)
+            {
+                tables.add(table(model));
+            }
+
+            return Futures.all(tables).thenComposeAsync(resolved -> {
+                long[] ids = new long[models.size()];
+                for (int i = 0; i < ids.length; i++)
+                {
+                    assignId(models.get(i));
+                    ids[i] = models.get(i).getId();
+                }
+
+                // One log entry for the whole group, so a single future tells us whether all of it made it
+                CompletableFuture<Void> durable = writeAll(ids, Records.batch(models), () -> {
+                    for (int i = 0; i < ids.length; i++)
+                    {
+                        store(resolved.get(i), models.get(i));
+                    }
+                    return models;
+                });
+                return whenDurable(durable, models);
+            }, executor);
+        });
     }
 
     /**
@@ -78,12 +250,213 @@ public class Datastore
      * @param id The id of the record to smoke
      * @return A future that completes when the work is complete
      */
-    public <T extends BusinessObject> CompletableFuture<Void> delete(Class<T> modelType, String id)
+    public <T extends BusinessObject> CompletableFuture<Void> delete(Class<T> modelType, long id)
+    {
+        return breaker.call(() -> table(modelType)
+            .thenComposeAsync(table -> {
+                // Check and log under the same stripe so nobody can delete it out from under us in between
+                CompletableFuture<Void> durable = stripes.write(id, () -> (table.get(id) == null)
+                    ? null
+                    : write(id, Records.delete(modelType, id), () -> {
+                        T removed = table.remove(id);
+                        if (removed != null)
+                            unindex(removed);
+                        return removed;
+                    }));
+
+                if (durable == null)
+                    return Futures.error(new NoSuchElementException());
+
+                return whenDurable(durable, null);
+            }, executor));
+    }
+
+    /**
+     * Registers a callback that fires after every successful save or delete w/ the record that was written (for a
+     * delete, that's the record as it was when it got removed). Callbacks run on whichever thread applied the write
+     * (the log's writer thread if we're persistent), so keep them quick and don't let them throw.
+     * @param listener The callback to notify
+     */
+    public void onChange(Consumer<BusinessObject> listener)
+    {
+        listeners.add(listener);
+    }
+
+    /**
+     * Exposes the breaker that every datastore operation goes through, so you can see whether it's open and how many
+     * calls it has turned away.
+     * @return The datastore's circuit breaker
+     */
+    public CircuitBreaker breaker()
+    {
+        return breaker;
+    }
+
+    /**
+     * Summarizes how many changes we've logged, how many fsyncs it took to make them durable, and how many snapshots
+     * we've taken.
+     * @return The log's counters by name (empty if we're only in memory)
+     */
+    public Map<String, Long> logStats()
+    {
+        // A plain (mutable) map rather than Collections.emptyMap(), which Gson can't serialize on newer JDKs
+        if (log == null)
+            return new HashMap<>();
+
+        Map<String, Long> stats = log.stats();
+        stats.put("snapshots", snapshots.sum());
+        return stats;
+    }
+
+    /**
+     * Waits for any snapshot in progress, makes sure every change so far is on disk, and closes the log. Does nothing
+     * if we're only in memory.
+     * @throws IOException If the final flush fails
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (log == null)
+            return;
+
+        snapshotter.shutdown();
+        try
+        {
+            snapshotter.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        log.close();
+    }
+
+    /**
+     * Logs a change to a record and applies it in memory once it's durable (right away if we're only in memory). The
+     * change is logged under the record's stripe, so changes to the same record are logged in order, and they're
+     * applied in that same order since the log completes its entries in order. If the log write fails, the change is
+     * never applied and nobody hears about it.
+     * @param id The id of the record being changed
+     * @param change The encoded change
+     * @param apply Applies the change to our tables and returns the record to tell listeners about (null for none)
+     * @return A future that completes once the change is durable and applied
+     */
+    private CompletableFuture<Void> write(long id, byte[] change, Supplier<? extends BusinessObject> apply)
+    {
+        Runnable applied = () -> {
+            BusinessObject model = stripes.write(id, apply);
+            if (model != null)
+                changed(model);
+        };
+
+        return stripes.write(id, () -> {
+            if (log != null)
+                return log.append(change, applied);
+
+            applied.run();
+            return DURABLE;
+        });
+    }
+
+    /**
+     * Same as <code>write()</code>, but for a single change that covers a whole group of records (see
+     * <code>Records.batch()</code>). It's logged and applied while holding every one of their stripes, and listeners
+     * hear about each record once the whole group has been applied.
+     * @param ids The ids of the records being changed
+     * @param change The encoded change
+     * @param apply Applies the change to our tables and returns the records to tell listeners about
+     * @return A future that completes once the change is durable and applied
+     */
+    private CompletableFuture<Void> writeAll(long[] ids, byte[] change,
+                                             Supplier<? extends List<? extends BusinessObject>> apply)
+    {
+        Runnable applied = () -> {
+            for (BusinessObject model : stripes.writeAll(ids, apply))
+            {
+                changed(model);
+            }
+        };
+
+        return stripes.writeAll(ids, () -> {
+            if (log != null)
+                return log.append(change, applied);
+
+            applied.run();
+            return DURABLE;
+        });
+    }
+
+    /**
+     * Completes w/ the given result once the write is durable. Callers' follow-up stages get bumped onto our executor
+     * so that they never run on (and hold up) the log's writer thread.
+     * @param durable The future from <code>write()</code>
+     * @param result What to complete w/
+     * @return A future that completes w/ the result once the write is durable
+     */
+    private <T> CompletableFuture<T> whenDurable(CompletableFuture<Void> durable, T result)
+    {
+        return (durable == DURABLE)
+            ? Futures.of(result)
+            : durable.thenApplyAsync(ignored -> result, executor);
+    }
+
+    /**
+     * Lets all of our listeners know that the given record was just saved or deleted. This happens once the write is
+     * durable and visible, so a listener that turns around and re-reads the record will see the new state.
+     * @param model The record that was written
+     */
+    private void changed(BusinessObject model)
+    {
+        for (Consumer<BusinessObject> listener : listeners)
+        {
+            listener.accept(model);
+        }
+    }
+
+    /**
+     * Updates any secondary indexes that cover the given record's type.
+     * @param model The record that was just saved
+     */
+    private void index(BusinessObject model)
+    {
+        if (model instanceof Order) ordersByUser.put((Order)model);
+        if (model instanceof Product) productsByCategory.put((Product)model);
+    }
+
+    /**
+     * Removes the given record from any secondary indexes that cover its type.
+     * @param model The record that was just deleted
+     */
+    private void unindex(BusinessObject model)
+    {
+        if (model instanceof Order) ordersByUser.remove(model.getId());
+        if (model instanceof Product) productsByCategory.remove(model.getId());
+    }
+
+    /**
+     * Resolves the id-keyed "table" that stores records of the given type.
+     * @param modelType The type of record whose table you want
+     * @return A future that completes w/ the table or fails if the type isn't persistent
+     */
+    @SuppressWarnings("unchecked")
+    private <T extends BusinessObject> CompletableFuture<LongMap<T>> table(Class<T> modelType)
+    {
+        if (modelType == User.class) return Futures.of((LongMap<T>)users);
+        if (modelType == Order.class) return Futures.of((LongMap<T>)orders);
+        if (modelType == Product.class) return Futures.of((LongMap<T>)products);
+
+        return Futures.error(new IllegalArgumentException(modelType + " is not a persistent type"));
+    }
+
+    /**
+     * Resolves the table that the given record belongs in.
+     * @param model The record whose table you want
+     * @return A future that completes w/ the table or fails if the record's type isn't persistent
+     */
+    @SuppressWarnings("unchecked")
+    private <T extends BusinessObject> CompletableFuture<LongMap<T>> table(T model)
     {
-        return get(modelType)
-            .thenCompose(tableModels -> tableModels.removeIf(m -> Objects.equals(m.getId(), id))
-                ? Futures.of(null)
-                : Futures.error(new NoSuchElementException()));
+        return table((Class<T>)model.getClass());
     }
 
     /**
@@ -91,53 +464,277 @@ public class Datastore
      * @param model The record to update
      * @return The input model
      */
-    private synchronized <T extends BusinessObject> T assignId(T model)
+    private <T extends BusinessObject> T assignId(T model)
     {
-        if (!Utils.hasValue(model.getId()))
+        if (model.getId() == BusinessObject.NO_ID)
         {
-            model.setId(String.valueOf(nextId++));
+            model.setId(nextId.getAndIncrement());
         }
         return model;
     }
 
     /**
-     * Fill our "database" with some testing data
+     * Fill our "database" with some testing data. Every operation runs right on the calling thread.
      */
-    @SuppressWarnings("OptionalGetWithoutIsPresent")
     public Datastore()
     {
+        this(ExecutorStrategy.CALLER.create());
+    }
+
+    /**
+     * Fill our "database" with some testing data. Every operation is handed off to the given executor, just like a
+     * call to a remote database would be.
+     * @param executor The executor that datastore operations run on
+     */
+    public Datastore(Executor executor)
+    {
+        this(executor, true);
+    }
+
+    /**
+     * Sets up empty tables and indexes, optionally filling them w/ our testing data.
+     * @param executor The executor that datastore operations run on
+     * @param seed Whether or not to add the testing data
+     */
+    private Datastore(Executor executor, boolean seed)
+    {
+        this.executor = executor;
+
         // This is higher than the ids we're hard-coding below, so all is cool.
-        nextId = 802;
+        nextId = new AtomicLong(802);
+        stripes = new Stripes();
+        breaker = new CircuitBreaker("datastore");
+        listeners = new CopyOnWriteArrayList<>();
 
-        users = new HashSet<>();
-        orders = new HashSet<>();
-        products = new HashSet<>();
+        users = new ConcurrentLongMap<>();
+        orders = new ConcurrentLongMap<>();
+        products = Boolean.getBoolean(OFF_HEAP_PROPERTY) ? new OffHeapProductTable() : new ConcurrentLongMap<>();
+        ordersByUser = new Index<>(
+            order -> (order.getUser() == null) ? null : order.getUser().getId(),
+            Order::getDateTime);
+        productsByCategory = new Index<>(Product::getCategory, product -> null);
 
-        users.add(User.create("100", "Jeff", "Lebowski", "123 Main St", "Indianapolis", "IN", "46256"));
-        users.add(User.create("101", "Walter", "Sobchak", "8080 Open Port", "Indianapolis", "IN", "46250"));
-        users.add(User.create("102", "Jackie", "Treehorn", "94 Beachfront Way", "Malibu", "CA", "90264"));
+        if (seed)
+            seed();
+    }
 
-        products.add(Product.create("500", "Half and Half", "Food", 79));
-        products.add(Product.create("501", "Bowling Ball", "Stuff", 12999));
-        products.add(Product.create("502", "White Russian", "Food", 749));
-        products.add(Product.create("503", "Laundry, The Whites", "Stuff", 499));
-        products.add(Product.create("504", "Folgers Coffee", "Food", 859));
-        products.add(Product.create("505", "Creedence Clearwater Cassette Tape", "Stuff", 1399));
+    /**
+     * Fills our empty tables w/ some hard-coded testing data.
+     */
+    private void seed()
+    {
+        store(users, User.create(100, "Jeff", "Lebowski", "123 Main St", "Indianapolis", "IN", "46256"));
+        store(users, User.create(101, "Walter", "Sobchak", "8080 Open Port", "Indianapolis", "IN", "46250"));
+        store(users, User.create(102, "Jackie", "Treehorn", "94 Beachfront Way", "Malibu", "CA", "90264"));
+
+        store(products, Product.create(500, "Half and Half", "Food", 79));
+        store(products, Product.create(501, "Bowling Ball", "Stuff", 12999));
+        store(products, Product.create(502, "White Russian", "Food", 749));
+        store(products, Product.create(503, "Laundry, The Whites", "Stuff", 499));
+        store(products, Product.create(504, "Folgers Coffee", "Food", 859));
+        store(products, Product.create(505, "Creedence Clearwater Cassette Tape", "Stuff", 1399));
 
         Order orderA = new Order();
-        orderA.setId("800");
-        orderA.setUser(users.stream().filter(u -> u.getId().equals("100")).findFirst().get());
-        orderA.setProduct(products.stream().filter(p -> p.getId().equals("500")).findFirst().get());
+        orderA.setId(800);
+        orderA.setUser(users.get(100));
+        orderA.setProduct(products.get(500));
         orderA.setDateTime(Instant.now());
         orderA.setStatus(OrderStatus.PLACED);
-        orders.add(orderA);
+        store(orders, orderA);
 
         Order orderB = new Order();
-        orderB.setId("801");
-        orderB.setUser(users.stream().filter(u -> u.getId().equals("100")).findFirst().get());
-        orderB.setProduct(products.stream().filter(p -> p.getId().equals("501")).findFirst().get());
+        orderB.setId(801);
+        orderB.setUser(users.get(100));
+        orderB.setProduct(products.get(501));
         orderB.setDateTime(Instant.now());
         orderB.setStatus(OrderStatus.PLACED);
-        orders.add(orderB);
+        store(orders, orderB);
+    }
+
+    /**
+     * Picks up right where we left off before our last restart. We load the latest snapshot from the given directory
+     * (or our testing data if there isn't one yet) and then replay only the changes that were logged after it. Every
+     * change from here on is logged there too, saves/deletes don't complete until they're safely on disk, and we take
+     * a fresh snapshot every so often (see "datastore.snapshot.seconds") to keep the next restart quick.
+     * @param executor The executor that datastore operations run on
+     * @param dir The directory to keep our snapshots and log in (created if need be)
+     * @throws IOException If the snapshot or log can't be loaded
+     */
+    public Datastore(Executor executor, Path dir) throws IOException
+    {
+        this(executor, false);
+        this.dir = dir;
+
+        Files.createDirectories(dir);
+        Snapshots.deleteIncomplete(dir);
+        long snapshot = Snapshots.latest(dir);
+        if (snapshot < 0)
+        {
+            seed();
+        }
+        else
+        {
+            long snapshotNextId = Snapshots.load(dir, snapshot, users::get, products::get, this::restore);
+            nextId.set(Math.max(nextId.get(), snapshotNextId));
+        }
+
+        try
+        {
+            log = new WriteAheadLog(dir, Math.max(snapshot, 0), this::replay);
+        }
+        catch (UncheckedIOException e)
+        {
+            throw e.getCause();
+        }
+        // Replay already moved nextId past every id the log mentions, deleted or not; this covers old snapshots
+        nextId.set(Math.max(nextId.get(), maxId() + 1));
+        snapshotsAtAppends = log.appends();
+
+        snapshotter = ExecutorStrategy.timer("snapshot-writer-");
+        long period = Long.getLong(SNAPSHOT_PROPERTY, 300);
+        if (period > 0)
+        {
+            snapshotter.scheduleWithFixedDelay(this::periodicSnapshot, period, period, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Writes a snapshot of every table and then throws away the log segments and snapshots that it makes redundant.
+     * Readers and writers carry on as usual while this happens. Snapshots are taken on their own thread, one at a
+     * time, so calling this while the periodic one is running just waits its turn.
+     * @return A future that completes once the snapshot is safely on disk (right away if we're only in memory)
+     */
+    public CompletableFuture<Void> snapshot()
+    {
+        if (log == null)
+            return Futures.of(null);
+
+        return CompletableFuture.runAsync(() -> {
+            try
+            {
+                writeSnapshot();
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        }, snapshotter);
+    }
+
+    /**
+     * Takes our scheduled snapshot unless nothing has changed since the last one.
+     */
+    private void periodicSnapshot()
+    {
+        if (log.appends() == snapshotsAtAppends)
+            return;
+
+        try
+        {
+            writeSnapshot();
+        }
+        catch (IOException e)
+        {
+            // We'll try again next time around; the log still has everything in the meantime
+            System.err.println("[Datastore] Unable to write a snapshot: " + e);
+        }
+    }
+
+    /**
+     * Rolls the log over to a new segment and then copies every table into a snapshot. The log applies each entry
+     * before it moves on, so everything in the older segments was already in the tables before the roll; the snapshot
+     * covers it all and those segments can go once it's written. Only ever runs on the snapshotter thread.
+     */
+    private void writeSnapshot() throws IOException
+    {
+        long appends = log.appends();
+        long segment = log.roll().join();
+
+        // The snapshot's rename (and the new segment's file) are fsynced by the time this returns; otherwise a crash
+        // could leave us w/ the older files deleted and nothing on disk to replace them
+        Snapshots.write(dir, segment, users.values(), products.values(), orders.values(), nextId::get);
+        Snapshots.deleteBefore(dir, segment);
+        log.deleteBefore(segment);
+
+        snapshotsAtAppends = appends;
+        snapshots.increment();
+    }
+
+    /**
+     * Drops a record from a snapshot straight into its table (and indexes).
+     * @param model The record to restore
+     */
+    @SuppressWarnings("unchecked")
+    private void restore(BusinessObject model)
+    {
+        LongMap<BusinessObject> table = table((Class<BusinessObject>)model.getClass()).join();
+        store(table, model);
+    }
+
+    /**
+     * Applies a change from the log directly to our tables and indexes (no locking or logging, since we're still in
+     * the constructor and nobody else can see us yet).
+     * @param payload The encoded change
+     */
+    @SuppressWarnings("unchecked")
+    private void replay(ByteBuffer payload)
+    {
+        try
+        {
+            DataInput in = new DataInputStream(new ByteArrayInputStream(
+                payload.array(), payload.arrayOffset() + payload.position(), payload.remaining()));
+            Records.Change change = Records.read(in, users::get, products::get);
+            if (change.op == Records.SAVE || change.op == Records.BATCH)
+            {
+                for (BusinessObject model : change.models)
+                {
+                    restore(model);
+                    nextId.accumulateAndGet(model.getId() + 1, Math::max);
+                }
+            }
+            else
+            {
+                // Even a deleted record's id was handed out once, so it can never be handed out again
+                nextId.accumulateAndGet(change.id + 1, Math::max);
+                LongMap<BusinessObject> table = table((Class<BusinessObject>)change.type).join();
+                BusinessObject removed = table.remove(change.id);
+                if (removed != null)
+                    unindex(removed);
+            }
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Finds the largest id in any table so that we never hand out an id that's already taken.
+     * @return The largest id (or 0 if there are none)
+     */
+    private long maxId()
+    {
+        long max = 0;
+        for (LongMap<? extends BusinessObject> table : Arrays.asList(users, orders, products))
+        {
+            for (BusinessObject model : table.values())
+            {
+                max = Math.max(max, model.getId());
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Puts a record (w/ id) in its table and then indexes whatever the table ended up holding for it. That's usually
+     * the record itself, but the off-heap product table hands back a view of its own copy instead, and we don't want
+     * the index pinning the caller's object (and its strings) on the heap.
+     * @param table The table to write to
+     * @param model The record to add or replace
+     */
+    private <T extends BusinessObject> void store(LongMap<T> table, T model)
+    {
+        table.put(model.getId(), model);
+        index(table.get(model.getId()));
     }
 }
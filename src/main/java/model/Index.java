@@ -0,0 +1,170 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Function;
+
+/**
+ * A secondary index over one of the datastore's tables. Records are grouped into buckets by some attribute (e.g. the
+ * user that placed an order) and each bucket is kept sorted, so a query only ever touches the records it returns.
+ * <p>
+ * Our models are mutable, so by the time a record is re-saved its bucket/sort values may have already changed. That's
+ * why we remember the exact entry each record was indexed under (keyed by its primitive id) rather than re-deriving
+ * it from the record.
+ * @param <T> The type of record being indexed
+ * @param <B> The type of value that records are grouped by (e.g. a user id or a category name)
+ */
+class Index<T extends BusinessObject, B>
+{
+    private static final Comparator<Entry> ENTRY_ORDER = Comparator
+        .comparing((Entry entry) -> entry.sortKey, Comparator.nullsFirst(Comparator.naturalOrder()))
+        .thenComparingLong(entry -> entry.id);
+
+    private final Function<T, B> bucketOf;
+    private final Function<T, ? extends Comparable<?>> sortKeyOf;
+    private final ConcurrentMap<B, ConcurrentSkipListMap<Entry, T>> buckets;
+    private final LongMap<Entry> entries;
+
+    /**
+     * @param bucketOf Extracts the value that we group records by (records w/ a null value aren't indexed)
+     * @param sortKeyOf Extracts the value that records in the same bucket are sorted by (ties are broken by id)
+     */
+    Index(Function<T, B> bucketOf, Function<T, ? extends Comparable<?>> sortKeyOf)
+    {
+        this.bucketOf = bucketOf;
+        this.sortKeyOf = sortKeyOf;
+        this.buckets = new ConcurrentHashMap<>();
+        this.entries = new ConcurrentLongMap<>();
+    }
+
+    /**
+     * Adds the record to the index, moving it to a new bucket/position if it was already indexed somewhere else.
+     * @param model The record that was just saved
+     */
+    void put(T model)
+    {
+        B bucket = bucketOf.apply(model);
+        if (bucket == null)
+        {
+            remove(model.getId());
+            return;
+        }
+
+        Entry entry = new Entry(bucket, sortKeyOf.apply(model), model.getId());
+        Entry previous = entries.put(entry.id, entry);
+        if (previous != null && !previous.equals(entry))
+        {
+            unlink(previous);
+        }
+        buckets.computeIfAbsent(bucket, key -> new ConcurrentSkipListMap<>(ENTRY_ORDER)).put(entry, model);
+    }
+
+    /**
+     * Drops the record w/ the given id from the index if it's there.
+     * @param id The id of the record that was deleted
+     */
+    void remove(long id)
+    {
+        Entry previous = entries.remove(id);
+        if (previous != null)
+        {
+            unlink(previous);
+        }
+    }
+
+    /**
+     * Looks up all of the records that belong to the given bucket.
+     * @param bucket The value to match (e.g. the user id)
+     * @return A read-only, live view of the matching records in sorted order
+     */
+    Collection<T> bucket(B bucket)
+    {
+        ConcurrentSkipListMap<Entry, T> models = (bucket == null) ? null : buckets.get(bucket);
+        return (models == null)
+            ? Collections.emptyList()
+            : Collections.unmodifiableCollection(models.values());
+    }
+
+    /**
+     * Walks a bucket in sorted order starting just past the given position, stopping once we have enough records. We
+     * never touch the records before the starting point or after the last one we return.
+     * @param bucket The value to match (e.g. the user id)
+     * @param afterSortKey The sort key of the last record the caller already has (ignored if afterId is NO_ID)
+     * @param afterId The id of the last record the caller already has, or NO_ID to start from the beginning
+     * @param limit The most records to return
+     * @return Up to limit records that come after the given position, in sorted order
+     */
+    List<T> page(B bucket, Comparable<?> afterSortKey, long afterId, int limit)
+    {
+        ConcurrentSkipListMap<Entry, T> models = (bucket == null) ? null : buckets.get(bucket);
+        if (models == null)
+            return Collections.emptyList();
+
+        Collection<T> remaining = (afterId == BusinessObject.NO_ID)
+            ? models.values()
+            : models.tailMap(new Entry(bucket, afterSortKey, afterId), false).values();
+
+        List<T> page = new ArrayList<>(Math.min(limit, 64));
+        for (T model : remaining)
+        {
+            if (page.size() >= limit)
+                break;
+
+            page.add(model);
+        }
+        return page;
+    }
+
+    private void unlink(Entry entry)
+    {
+        ConcurrentSkipListMap<Entry, T> models = buckets.get(entry.bucket);
+        if (models != null)
+        {
+            models.remove(entry);
+        }
+    }
+
+    /**
+     * The immutable position of a single record within the index.
+     */
+    private static class Entry
+    {
+        private final Object bucket;
+        private final Comparable<Object> sortKey;
+        private final long id;
+
+        @SuppressWarnings("unchecked")
+        private Entry(Object bucket, Comparable<?> sortKey, long id)
+        {
+            this.bucket = bucket;
+            this.sortKey = (Comparable<Object>)sortKey;
+            this.id = id;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            // Spelled out rather than Objects.hash() so that we don't box the id or build an array every time
+            return (31 * Objects.hashCode(bucket) + Objects.hashCode(sortKey)) * 31 + Long.hashCode(id);
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            if (!(other instanceof Entry))
+                return false;
+
+            Entry entry = (Entry)other;
+            return Objects.equals(bucket, entry.bucket)
+                && Objects.equals(sortKey, entry.sortKey)
+                && id == entry.id;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package model;
+
+import java.util.Collection;
+
+/**
+ * One of the datastore's "tables": records keyed by their primitive long id, so that looking one up never boxes its
+ * id or hashes a string. Implementations must be safe for concurrent use, and reads should never block.
+ * @param <V> The type of record stored
+ */
+interface LongMap<V>
+{
+    /**
+     * @param key The id to look up
+     * @return The record w/ that id, or null if there isn't one
+     */
+    V get(long key);
+
+    /**
+     * @param key The id to store the record under
+     * @param value The record to store
+     * @return The record that used to have that id, or null if there wasn't one
+     */
+    V put(long key, V value);
+
+    /**
+     * @param key The id of the record to remove
+     * @return The record that was removed, or null if there wasn't one
+     */
+    V remove(long key);
+
+    /**
+     * @return The number of records stored
+     */
+    int size();
+
+    /**
+     * @return A read-only, live view of every record stored (weakly consistent, like a ConcurrentHashMap's)
+     */
+    Collection<V> values();
+}
@@ -0,0 +1,779 @@
+package model;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A products "table" that keeps its records off the Java heap. Each product is a fixed-size record in a chunk of
+ * direct memory, and an open-addressing index of plain long/int arrays maps each id to its record's slot. So a catalog
+ * of millions of products costs the heap a few primitives apiece rather than a Product and its Strings, and the GC
+ * never has to trace any of it.
+ * <p>
+ * Lookups hand back a lightweight view of the record that decodes each field only when you ask for it. Views are
+ * live, so they reflect later saves of the same product. Calling a setter on one detaches it into a regular copy
+ * first; like any other model, the change only reaches the table once you save it.
+ * <p>
+ * Writers lock just the record they're changing (a seqlock: its version is odd while a write is in progress), and
+ * readers never lock at all; they simply re-read a field if its record changed underneath them. Deleting a product
+ * puts its slot on a free list for the next new id, so churning through ids doesn't grow the table past the most
+ * products it has ever held at once. Each time a slot is handed out its generation goes up, which is how a view of
+ * a product that's since been deleted knows not to start reading somebody else's record.
+ * <p>
+ * The catch is that strings have a fixed amount of room: saving a product whose name or category won't fit fails w/
+ * an IllegalArgumentException.
+ */
+class OffHeapProductTable implements LongMap<Product>
+{
+    private static final int RECORD_SIZE = 256;
+    private static final int CHUNK_SLOTS = 4096;
+
+    // Where each field lives in a record. Strings are stored as their UTF-8 length + 1 (0 means null) followed by
+    // their bytes; the name gets a two-byte length and the category gets one.
+    private static final int STATE = 0;
+    private static final int GENERATION = 4;
+    private static final int ID = 8;
+    private static final int PRICE = 16;
+    private static final int CATEGORY = 24;
+    private static final int CATEGORY_BYTES = 31;
+    private static final int NAME = 56;
+    private static final int NAME_BYTES = 198;
+
+    // A slot is EMPTY from when it's handed to an id until that product is first written, and FREE from when the
+    // product is deleted until the slot is handed out again
+    private static final byte EMPTY = 0;
+    private static final byte LIVE = 1;
+    private static final byte FREE = 2;
+
+    // Keeps a reader's plain loads from the buffer from drifting past its seqlock re-check (see Chunk.validate())
+    private static final MethodHandle LOAD_FENCE = loadFence();
+
+    private volatile Chunk[] chunks;
+    private volatile IdIndex index;
+    private final AtomicInteger size;
+
+    // How many slots have ever been handed out (the high-water mark), plus the ones that have been given back since.
+    // Both only change while holding "this".
+    private volatile int allocated;
+    private int[] free;
+    private int freeCount;
+
+    OffHeapProductTable()
+    {
+        chunks = new Chunk[0];
+        index = new IdIndex(1024);
+        size = new AtomicInteger();
+        free = new int[64];
+    }
+
+    /**
+     * How much direct memory the records take up (the heap only holds the id index and per-record versions).
+     * @return The number of off-heap bytes allocated
+     */
+    long offHeapBytes()
+    {
+        return (long)chunks.length * CHUNK_SLOTS * RECORD_SIZE;
+    }
+
+    @Override
+    public Product get(long id)
+    {
+        // The index may still point at a slot that has just been deleted (and even handed to another id)
+        int slot = slotOf(id);
+        View view = (slot >= 0) ? view(slot) : null;
+        return (view != null && view.id == id) ? view : null;
+    }
+
+    /**
+     * Writes the product into the record that belongs to its id, handing the id a slot if it doesn't have one.
+     * @return A detached copy of the product as it was before, or null if it wasn't here
+     */
+    @Override
+    public Product put(long id, Product product)
+    {
+        byte[] name = encode(product.getName(), NAME_BYTES, "name");
+        byte[] category = encode(product.getCategory(), CATEGORY_BYTES, "category");
+
+        int slot = slotOf(id);
+        if (slot < 0)
+            slot = allocate(id);
+
+        while (true)
+        {
+            Chunk chunk = chunk(slot);
+            int record = slot % CHUNK_SLOTS;
+            int base = record * RECORD_SIZE;
+            chunk.lock(record);
+            try
+            {
+                ByteBuffer buffer = chunk.buffer;
+                byte state = buffer.get(base + STATE);
+                if (state != FREE && buffer.getLong(base + ID) == id)
+                {
+                    boolean live = state == LIVE;
+                    Product previous = live ? copy(buffer, base) : null;
+
+                    writeString(buffer, base + NAME, name, true);
+                    writeString(buffer, base + CATEGORY, category, false);
+                    buffer.putLong(base + PRICE, product.getPrice());
+                    buffer.put(base + STATE, LIVE);
+                    if (!live)
+                        size.incrementAndGet();
+
+                    return previous;
+                }
+            }
+            finally
+            {
+                chunk.unlock(record);
+            }
+
+            // The product was deleted between finding its slot and locking it. Deletes hold the allocation lock, so
+            // by the time allocate() gets it, the old slot is out of the index and we'll get a fresh one.
+            slot = allocate(id);
+        }
+    }
+
+    /**
+     * Deletes the product and puts its slot on the free list. Views of it that are already out there keep reading
+     * its old values until the slot is handed out again; after that, they come back detached w/ only an id.
+     * @return A detached copy of the product that was removed, or null if it wasn't here
+     */
+    @Override
+    public synchronized Product remove(long id)
+    {
+        int slot = slotOf(id);
+        if (slot < 0)
+            return null;
+
+        Chunk chunk = chunk(slot);
+        int record = slot % CHUNK_SLOTS;
+        int base = record * RECORD_SIZE;
+        Product removed;
+        chunk.lock(record);
+        try
+        {
+            if (chunk.buffer.get(base + STATE) != LIVE)
+                return null;
+
+            removed = copy(chunk.buffer, base);
+            chunk.buffer.put(base + STATE, FREE);
+            size.decrementAndGet();
+        }
+        finally
+        {
+            chunk.unlock(record);
+        }
+
+        index.remove(id);
+        if (freeCount == free.length)
+            free = Arrays.copyOf(free, free.length * 2);
+        free[freeCount++] = slot;
+        return removed;
+    }
+
+    @Override
+    public int size()
+    {
+        return size.get();
+    }
+
+    /**
+     * Views of every live product, in slot order.
+     */
+    @Override
+    public Collection<Product> values()
+    {
+        return new AbstractCollection<Product>()
+        {
+            @Override
+            public Iterator<Product> iterator()
+            {
+                return new Slots();
+            }
+
+            @Override
+            public int size()
+            {
+                return OffHeapProductTable.this.size();
+            }
+        };
+    }
+
+    /**
+     * Finds the slot that holds the given id w/o taking any locks (or allocating anything).
+     * @param id The id to look for
+     * @return The id's slot, or -1 if it has never been saved
+     */
+    private int slotOf(long id)
+    {
+        IdIndex index = this.index;
+        for (int i = hash(id) & index.mask; ; i = (i + 1) & index.mask)
+        {
+            int entry = index.slots.get(i);
+            if (entry == 0)
+                return -1;
+            if (entry != IdIndex.TOMBSTONE && index.ids[i] == id)
+                return entry - 1;
+        }
+    }
+
+    /**
+     * Hands the given id a slot, recycling a deleted product's if there is one. The id (and the slot's new generation)
+     * are written into the record before the slot is published in the index, so anybody who can find the slot can
+     * also tell whose it is.
+     */
+    private synchronized int allocate(long id)
+    {
+        // Somebody may have beaten us to it while we were waiting for the lock
+        int slot = slotOf(id);
+        if (slot >= 0)
+            return slot;
+
+        if (freeCount > 0)
+        {
+            slot = free[--freeCount];
+        }
+        else
+        {
+            slot = allocated;
+            Chunk[] chunks = this.chunks;
+            if (slot / CHUNK_SLOTS == chunks.length)
+            {
+                chunks = Arrays.copyOf(chunks, chunks.length + 1);
+                chunks[chunks.length - 1] = new Chunk();
+                this.chunks = chunks;
+            }
+            allocated = slot + 1;
+        }
+
+        Chunk chunk = chunk(slot);
+        int record = slot % CHUNK_SLOTS;
+        int base = record * RECORD_SIZE;
+        chunk.lock(record);
+        try
+        {
+            chunk.buffer.putInt(base + GENERATION, chunk.buffer.getInt(base + GENERATION) + 1);
+            chunk.buffer.putLong(base + ID, id);
+            chunk.buffer.put(base + STATE, EMPTY);
+        }
+        finally
+        {
+            chunk.unlock(record);
+        }
+
+        IdIndex index = this.index;
+        if ((index.used + 1) * 2 > index.mask + 1)
+        {
+            index = index.rebuilt();
+            index.insert(id, slot + 1);
+            this.index = index;
+        }
+        else
+        {
+            index.insert(id, slot + 1);
+        }
+        return slot;
+    }
+
+    /**
+     * Makes a view of the product in the given slot, if there is one.
+     * @return The view, or null if the slot doesn't hold a live product right now
+     */
+    private View view(int slot)
+    {
+        Chunk chunk = chunk(slot);
+        int record = slot % CHUNK_SLOTS;
+        int base = record * RECORD_SIZE;
+        while (true)
+        {
+            int version = chunk.stableVersion(record);
+            byte state = chunk.buffer.get(base + STATE);
+            int generation = chunk.buffer.getInt(base + GENERATION);
+            long id = chunk.buffer.getLong(base + ID);
+            if (chunk.validate(record, version))
+                return (state == LIVE) ? new View(slot, id, generation) : null;
+        }
+    }
+
+    /**
+     * Reads a string field for a view. If the view's slot has been handed out again since, the view detaches and we
+     * return null instead.
+     */
+    private String readString(View view, int offset, boolean wide)
+    {
+        Chunk chunk = chunk(view.slot);
+        int record = view.slot % CHUNK_SLOTS;
+        int base = record * RECORD_SIZE;
+        while (true)
+        {
+            int version = chunk.stableVersion(record);
+            int generation = chunk.buffer.getInt(base + GENERATION);
+            String value = readString(chunk.buffer, base + offset, wide);
+            if (chunk.validate(record, version))
+                return view.isCurrent(generation) ? value : null;
+        }
+    }
+
+    /**
+     * Reads a long field for a view, just like readString() does.
+     */
+    private long readLong(View view, int offset)
+    {
+        Chunk chunk = chunk(view.slot);
+        int record = view.slot % CHUNK_SLOTS;
+        int base = record * RECORD_SIZE;
+        while (true)
+        {
+            int version = chunk.stableVersion(record);
+            int generation = chunk.buffer.getInt(base + GENERATION);
+            long value = chunk.buffer.getLong(base + offset);
+            if (chunk.validate(record, version))
+                return view.isCurrent(generation) ? value : 0;
+        }
+    }
+
+    private Chunk chunk(int slot)
+    {
+        return chunks[slot / CHUNK_SLOTS];
+    }
+
+    /**
+     * Decodes a whole record into a regular Product. Only call this while holding the record's lock, or inside a
+     * seqlock read that will check the copy before anybody uses it.
+     */
+    private static Product copy(ByteBuffer buffer, int base)
+    {
+        return Product.create(
+            buffer.getLong(base + ID),
+            readString(buffer, base + NAME, true),
+            readString(buffer, base + CATEGORY, false),
+            buffer.getLong(base + PRICE));
+    }
+
+    /**
+     * Decodes a string field. The length is clamped so that a read that raced w/ a write can produce garbage (which
+     * the seqlock will make us throw away) but never run past the end of the record.
+     */
+    private static String readString(ByteBuffer buffer, int position, boolean wide)
+    {
+        int length = wide ? (buffer.getShort(position) & 0xFFFF) - 1 : (buffer.get(position) & 0xFF) - 1;
+        if (length < 0)
+            return null;
+
+        int start = position + (wide ? 2 : 1);
+        byte[] bytes = new byte[Math.min(length, wide ? NAME_BYTES : CATEGORY_BYTES)];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            bytes[i] = buffer.get(start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(ByteBuffer buffer, int position, byte[] bytes, boolean wide)
+    {
+        int length = (bytes == null) ? 0 : bytes.length + 1;
+        if (wide)
+            buffer.putShort(position, (short)length);
+        else
+            buffer.put(position, (byte)length);
+
+        int start = position + (wide ? 2 : 1);
+        for (int i = 0; bytes != null && i < bytes.length; i++)
+        {
+            buffer.put(start + i, bytes[i]);
+        }
+    }
+
+    private static byte[] encode(String value, int capacity, String field)
+    {
+        if (value == null)
+            return null;
+
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > capacity)
+            throw new IllegalArgumentException("Product " + field + " is too long (" + bytes.length +
+                " bytes); the off-heap catalog only has room for " + capacity);
+
+        return bytes;
+    }
+
+    private static int hash(long id)
+    {
+        // Fibonacci hashing, same as ConcurrentLongMap, so sequential ids don't pile up in neighboring buckets
+        long hash = id * 0x9E3779B97F4A7C15L;
+        return (int)(hash ^ (hash >>> 32));
+    }
+
+    /**
+     * Finds a load-load fence. We build against the Java 8 API, so we can't call VarHandle.acquireFence() directly;
+     * we look it up when it's there (Java 9+) and fall back to Unsafe.loadFence() (which is all Java 8 has).
+     * @return The fence, or null if neither is available
+     */
+    private static MethodHandle loadFence()
+    {
+        MethodType type = MethodType.methodType(void.class);
+        try
+        {
+            Class<?> varHandle = Class.forName("java.lang.invoke.VarHandle");
+            return MethodHandles.publicLookup().findStatic(varHandle, "acquireFence", type);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            // Java 8
+        }
+
+        try
+        {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return MethodHandles.lookup().findVirtual(unsafeClass, "loadFence", type).bindTo(theUnsafe.get(null));
+        }
+        catch (ReflectiveOperationException | RuntimeException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * A live view of one record that decodes each field from the table when it's asked for. Setters detach it into
+     * a regular Product first so that they never write to the table behind the datastore's back. A view whose slot
+     * has been handed to another product detaches too, w/ only its id, since its own values are long gone by then.
+     */
+    private class View extends Product
+    {
+        private final int slot;
+        private final long id;
+        private final int generation;
+
+        // Volatile since views get shared (e.g. by the caches) and a read can detach one as easily as a setter can
+        private volatile boolean detached;
+
+        private View(int slot, long id, int generation)
+        {
+            this.slot = slot;
+            this.id = id;
+            this.generation = generation;
+        }
+
+        @Override
+        public long getId()
+        {
+            return detached ? super.getId() : id;
+        }
+
+        @Override
+        public String getName()
+        {
+            if (!detached)
+            {
+                String name = readString(this, NAME, true);
+                if (!detached)
+                    return name;
+            }
+            return super.getName();
+        }
+
+        @Override
+        public String getCategory()
+        {
+            if (!detached)
+            {
+                String category = readString(this, CATEGORY, false);
+                if (!detached)
+                    return category;
+            }
+            return super.getCategory();
+        }
+
+        @Override
+        public long getPrice()
+        {
+            if (!detached)
+            {
+                long price = readLong(this, PRICE);
+                if (!detached)
+                    return price;
+            }
+            return super.getPrice();
+        }
+
+        @Override
+        public void setId(long id)
+        {
+            detach();
+            super.setId(id);
+        }
+
+        @Override
+        public void setName(String name)
+        {
+            detach();
+            super.setName(name);
+        }
+
+        @Override
+        public void setCategory(String category)
+        {
+            detach();
+            super.setCategory(category);
+        }
+
+        @Override
+        public void setPrice(long price)
+        {
+            detach();
+            super.setPrice(price);
+        }
+
+        /**
+         * Checks a generation read from our slot against our own, detaching if the slot isn't ours anymore.
+         */
+        private boolean isCurrent(int generation)
+        {
+            if (generation == this.generation)
+                return true;
+
+            detach(null);
+            return false;
+        }
+
+        /**
+         * Copies the whole record into this Product in one consistent read, so a detached view never mixes the
+         * fields from two different saves.
+         */
+        private void detach()
+        {
+            if (detached)
+                return;
+
+            Chunk chunk = chunk(slot);
+            int record = slot % CHUNK_SLOTS;
+            int base = record * RECORD_SIZE;
+            while (true)
+            {
+                int version = chunk.stableVersion(record);
+                int generation = chunk.buffer.getInt(base + GENERATION);
+                Product copy = copy(chunk.buffer, base);
+                if (chunk.validate(record, version))
+                {
+                    detach((generation == this.generation) ? copy : null);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Detaches into the given copy of our record, or w/ just our id if there's nothing left to copy.
+         */
+        private synchronized void detach(Product copy)
+        {
+            if (detached)
+                return;
+
+            super.setId(id);
+            if (copy != null)
+            {
+                super.setName(copy.getName());
+                super.setCategory(copy.getCategory());
+                super.setPrice(copy.getPrice());
+            }
+            detached = true;
+        }
+    }
+
+    /**
+     * Walks every live slot in allocation order. Like the iterators on a ConcurrentHashMap, it never throws a
+     * ConcurrentModificationException and may or may not see changes made while it's walking.
+     */
+    private class Slots implements Iterator<Product>
+    {
+        private Product product;
+        private int next = advance(0);
+
+        @Override
+        public boolean hasNext()
+        {
+            return next >= 0;
+        }
+
+        @Override
+        public Product next()
+        {
+            if (next < 0)
+                throw new NoSuchElementException();
+
+            Product current = product;
+            next = advance(next + 1);
+            return current;
+        }
+
+        private int advance(int slot)
+        {
+            for (int end = allocated; slot < end; slot++)
+            {
+                View view = view(slot);
+                if (view != null)
+                {
+                    product = view;
+                    return slot;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * A block of records in direct memory plus the seqlock version of each one.
+     */
+    private static class Chunk
+    {
+        private final ByteBuffer buffer;
+        private final AtomicIntegerArray versions;
+
+        private Chunk()
+        {
+            buffer = ByteBuffer.allocateDirect(CHUNK_SLOTS * RECORD_SIZE);
+            versions = new AtomicIntegerArray(CHUNK_SLOTS);
+        }
+
+        /**
+         * Waits out any write in progress on the record and returns the version that the caller's read must match.
+         */
+        private int stableVersion(int record)
+        {
+            while (true)
+            {
+                int version = versions.get(record);
+                if ((version & 1) == 0)
+                    return version;
+
+                Thread.yield();
+            }
+        }
+
+        /**
+         * Whether a read that started at the given version saw a consistent record. The buffer reads are plain loads,
+         * and a volatile read on its own only keeps later loads from moving ahead of it, not earlier ones from moving
+         * after it; so w/o the fence, a read could be torn and still pass. If there's no fence to be had, a CAS that
+         * leaves the version as-is does the same job (it's a full barrier), it just costs readers a contended write.
+         */
+        private boolean validate(int record, int version)
+        {
+            if (LOAD_FENCE == null)
+                return versions.compareAndSet(record, version, version);
+
+            try
+            {
+                LOAD_FENCE.invokeExact();
+            }
+            catch (Throwable t)
+            {
+                throw new IllegalStateException(t);
+            }
+            return versions.get(record) == version;
+        }
+
+        private void lock(int record)
+        {
+            while (true)
+            {
+                int version = versions.get(record);
+                if ((version & 1) == 0 && versions.compareAndSet(record, version, version + 1))
+                    return;
+
+                Thread.yield();
+            }
+        }
+
+        private void unlock(int record)
+        {
+            versions.incrementAndGet(record);
+        }
+    }
+
+    /**
+     * An open-addressing hash table of id to slot + 1 (0 marks an empty bucket, and TOMBSTONE one whose id has been
+     * deleted). A bucket is only ever filled in once: each one's id is set before its slot is (atomically) published,
+     * and deleting just tombstones it, so readers can probe it w/o a lock. The tombstones are swept out whenever it's
+     * rebuilt into a brand new copy. Only changes while holding the table's lock.
+     */
+    private static class IdIndex
+    {
+        private static final int TOMBSTONE = -1;
+
+        private final long[] ids;
+        private final AtomicIntegerArray slots;
+        private final int mask;
+
+        // How many buckets aren't empty (tombstones included), and how many of those are still live
+        private int used;
+        private int live;
+
+        private IdIndex(int capacity)
+        {
+            ids = new long[capacity];
+            slots = new AtomicIntegerArray(capacity);
+            mask = capacity - 1;
+        }
+
+        private void insert(long id, int entry)
+        {
+            int i = hash(id) & mask;
+            while (slots.get(i) != 0)
+            {
+                i = (i + 1) & mask;
+            }
+            ids[i] = id;
+            slots.set(i, entry);
+            used++;
+            live++;
+        }
+
+        private void remove(long id)
+        {
+            for (int i = hash(id) & mask; ; i = (i + 1) & mask)
+            {
+                int entry = slots.get(i);
+                if (entry == 0)
+                    return;
+                if (entry != TOMBSTONE && ids[i] == id)
+                {
+                    slots.set(i, TOMBSTONE);
+                    live--;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Copies the live buckets into a new index, twice as big unless most of what filled this one was tombstones.
+         */
+        private IdIndex rebuilt()
+        {
+            int capacity = mask + 1;
+            if ((live + 1) * 4 > capacity)
+                capacity *= 2;
+
+            IdIndex rebuilt = new IdIndex(capacity);
+            for (int i = 0; i <= mask; i++)
+            {
+                int entry = slots.get(i);
+                if (entry != 0 && entry != TOMBSTONE)
+                    rebuilt.insert(ids[i], entry);
+            }
+            return rebuilt;
+        }
+    }
+}
@@ -3,14 +3,13 @@ package model;
 import util.OrderStatus;
 
 import java.time.Instant;
-import java.util.Objects;
 
 /**
  * A single order from the status
  */
 public class Order implements BusinessObject
 {
-    private String id;
+    private long id;
     private User user;
     private Product product;
     private long salesTax;
@@ -19,13 +18,13 @@ public class Order implements BusinessObject
     private OrderStatus status;
 
     @Override
-    public String getId()
+    public long getId()
     {
         return id;
     }
 
     @Override
-    public void setId(String id)
+    public void setId(long id)
     {
         this.id = id;
     }
@@ -90,6 +89,24 @@ public class Order implements BusinessObject
         this.status = status;
     }
 
+    /**
+     * Makes a shallow copy of this order (the user and product are shared). Change the copy and save it rather than
+     * changing an order you got from the datastore, since that one is shared w/ everybody else who read it.
+     * @return The copy
+     */
+    public Order copy()
+    {
+        Order copy = new Order();
+        copy.setId(id);
+        copy.setUser(user);
+        copy.setProduct(product);
+        copy.setSalesTax(salesTax);
+        copy.setDateTime(dateTime);
+        copy.setDateTimeDelivered(dateTimeDelivered);
+        copy.setStatus(status);
+        return copy;
+    }
+
     public Order status(OrderStatus status)
     {
         setStatus(status);
@@ -103,17 +120,12 @@ public class Order implements BusinessObject
     @Override
     public int hashCode()
     {
-        return (getClass().getSimpleName() + ":" + getId()).hashCode();
+        return Long.hashCode(getId());
     }
 
     @Override
     public boolean equals(Object other)
     {
-        if (other != null && other.getClass() == getClass())
-        {
-            BusinessObject businessObject = (BusinessObject) other;
-            return Objects.equals(getId(), businessObject.getId());
-        }
-        return false;
+        return (other != null) && (other.getClass() == getClass()) && ((BusinessObject)other).getId() == getId();
     }
 }
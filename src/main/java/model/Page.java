@@ -0,0 +1,34 @@
+package model;
+
+import java.util.List;
+
+/**
+ * One page of a larger, ordered result (e.g. a user's order history). To get the page after this one, make the same
+ * request again w/ this page's "next" cursor.
+ * @param <T> The type of record on the page
+ */
+public class Page<T>
+{
+    private List<T> items;
+    private String next;
+
+    /**
+     * @param items The records on this page, in order
+     * @param next An opaque cursor pointing just past the last item, or null if this is the last page
+     */
+    public Page(List<T> items, String next)
+    {
+        this.items = items;
+        this.next = next;
+    }
+
+    public List<T> getItems()
+    {
+        return items;
+    }
+
+    public String getNext()
+    {
+        return next;
+    }
+}
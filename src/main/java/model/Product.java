@@ -1,25 +1,23 @@
 package model;
 
-import java.util.Objects;
-
 /**
  * A single product from the store's inventory
  */
 public class Product implements BusinessObject
 {
-    private String id;
+    private long id;
     private String name;
     private String category;
     private long price;
 
     @Override
-    public String getId()
+    public long getId()
     {
         return id;
     }
 
     @Override
-    public void setId(String id)
+    public void setId(long id)
     {
         this.id = id;
     }
@@ -57,21 +55,17 @@ public class Product implements BusinessObject
     @Override
     public int hashCode()
     {
-        return (getClass().getSimpleName() + ":" + getId()).hashCode();
+        return Long.hashCode(getId());
     }
 
     @Override
     public boolean equals(Object other)
     {
-        if (other != null && other.getClass() == getClass())
-        {
-            BusinessObject businessObject = (BusinessObject) other;
-            return Objects.equals(getId(), businessObject.getId());
-        }
-        return false;
+        // Not getClass(), since the off-heap catalog hands out views that subclass us
+        return (other instanceof Product) && ((Product)other).getId() == getId();
     }
 
-    public static Product create(String id, String name, String category, long price)
+    public static Product create(long id, String name, String category, long price)
     {
         Product product = new Product();
         product.setId(id);
@@ -0,0 +1,330 @@
+package model;
+
+import util.OrderStatus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongFunction;
+import java.util.function.Supplier;
+
+/**
+ * The compact binary format that our records are persisted in. Each change starts w/ a one-byte op and a one-byte
+ * type, followed by either the whole record (for a save) or just its id (for a delete). A batch of saves is a single
+ * change: its op, a count, and then each whole record, so the batch is logged (and replayed) all or nothing. Ids are
+ * stored as plain 8-byte longs. An order only stores the ids of its user and product; we hook them back up to the
+ * real records when we read it.
+ */
+class Records
+{
+    static final byte SAVE = 1;
+    static final byte DELETE = 2;
+    static final byte BATCH = 3;
+
+    private static final byte USER = 1;
+    private static final byte PRODUCT = 2;
+    private static final byte ORDER = 3;
+
+    private static final OrderStatus[] STATUSES = OrderStatus.values();
+
+    /**
+     * A single change read back from the log.
+     */
+    static class Change
+    {
+        final byte op;
+        final Class<? extends BusinessObject> type;
+        final long id;
+        final BusinessObject model;
+        final List<BusinessObject> models;
+
+        private Change(byte op, Class<? extends BusinessObject> type, long id, BusinessObject model)
+        {
+            this(op, type, id, model, Collections.singletonList(model));
+        }
+
+        private Change(byte op, Class<? extends BusinessObject> type, long id, BusinessObject model,
+                       List<BusinessObject> models)
+        {
+            this.op = op;
+            this.type = type;
+            this.id = id;
+            this.model = model;
+            this.models = models;
+        }
+    }
+
+    /**
+     * Encodes the saving of a record.
+     * @param model The record being saved
+     * @return The encoded change
+     */
+    static byte[] save(BusinessObject model)
+    {
+        return encode(out -> {
+            out.writeByte(SAVE);
+            writeRecord(out, model);
+        });
+    }
+
+    /**
+     * Encodes the saving of a whole group of records as a single change.
+     * @param models The records being saved (records later in the list may point to ones earlier in it)
+     * @return The encoded change
+     */
+    static byte[] batch(List<? extends BusinessObject> models)
+    {
+        return encode(out -> {
+            out.writeByte(BATCH);
+            out.writeInt(models.size());
+            for (BusinessObject model : models)
+            {
+                writeRecord(out, model);
+            }
+        });
+    }
+
+    /**
+     * Encodes the deletion of a record.
+     * @param modelType The type of record being deleted
+     * @param id The id of the record being deleted
+     * @return The encoded change
+     */
+    static byte[] delete(Class<? extends BusinessObject> modelType, long id)
+    {
+        return encode(out -> {
+            out.writeByte(DELETE);
+            out.writeByte(typeOf(modelType));
+            out.writeLong(id);
+        });
+    }
+
+    /**
+     * Decodes a single change that was encoded by <code>save()</code>, <code>batch()</code> or <code>delete()</code>.
+     * Each record in a batch can point to the records before it, even though none of them are in our tables yet.
+     * @param in The encoded change
+     * @param users Looks up the user that an order points to
+     * @param products Looks up the product that an order points to
+     * @return The decoded change
+     * @throws IOException If the change is malformed
+     */
+    static Change read(DataInput in, LongFunction<User> users, LongFunction<Product> products)
+        throws IOException
+    {
+        byte op = in.readByte();
+        if (op == DELETE)
+        {
+            Class<? extends BusinessObject> type = classOf(in.readByte());
+            return new Change(op, type, in.readLong(), null);
+        }
+        if (op == SAVE)
+        {
+            BusinessObject model = readRecord(in, users, products);
+            return new Change(op, model.getClass(), model.getId(), model);
+        }
+        if (op == BATCH)
+        {
+            int count = in.readInt();
+            List<BusinessObject> models = new ArrayList<>(count);
+            Map<Long, BusinessObject> earlier = new HashMap<>();
+            LongFunction<User> batchUsers = id -> earlier.get(id) instanceof User
+                ? (User)earlier.get(id)
+                : users.apply(id);
+            LongFunction<Product> batchProducts = id -> earlier.get(id) instanceof Product
+                ? (Product)earlier.get(id)
+                : products.apply(id);
+
+            for (int i = 0; i < count; i++)
+            {
+                BusinessObject model = readRecord(in, batchUsers, batchProducts);
+                earlier.put(model.getId(), model);
+                models.add(model);
+            }
+            return new Change(op, null, BusinessObject.NO_ID, null, models);
+        }
+        throw new IOException("Unknown op " + op);
+    }
+
+    /**
+     * Writes a whole record (w/ its type tag) in our binary format.
+     * @param out Where to write the record
+     * @param model The record to write
+     * @throws IOException If the output fails
+     */
+    static void writeRecord(DataOutput out, BusinessObject model) throws IOException
+    {
+        if (model instanceof User)
+        {
+            User user = (User)model;
+            out.writeByte(USER);
+            out.writeLong(user.getId());
+            writeString(out, user.getFirstName());
+            writeString(out, user.getLastName());
+            writeString(out, user.getAddress());
+            writeString(out, user.getCity());
+            writeString(out, user.getState());
+            writeString(out, user.getPostalCode());
+        }
+        else if (model instanceof Product)
+        {
+            Product product = (Product)model;
+            out.writeByte(PRODUCT);
+            out.writeLong(product.getId());
+            writeString(out, product.getName());
+            writeString(out, product.getCategory());
+            out.writeLong(product.getPrice());
+        }
+        else if (model instanceof Order)
+        {
+            Order order = (Order)model;
+            out.writeByte(ORDER);
+            out.writeLong(order.getId());
+            out.writeLong((order.getUser() == null) ? BusinessObject.NO_ID : order.getUser().getId());
+            out.writeLong((order.getProduct() == null) ? BusinessObject.NO_ID : order.getProduct().getId());
+            out.writeLong(order.getSalesTax());
+            writeInstant(out, order.getDateTime());
+            writeInstant(out, order.getDateTimeDelivered());
+            out.writeByte((order.getStatus() == null) ? -1 : order.getStatus().ordinal());
+        }
+        else
+        {
+            throw new IllegalArgumentException(model.getClass() + " is not a persistent type");
+        }
+    }
+
+    /**
+     * Reads a whole record that was written by <code>writeRecord()</code>.
+     * @param in Where to read the record from
+     * @param users Looks up the user that an order points to
+     * @param products Looks up the product that an order points to
+     * @return The record
+     * @throws IOException If the record is malformed
+     */
+    static BusinessObject readRecord(DataInput in, LongFunction<User> users, LongFunction<Product> products)
+        throws IOException
+    {
+        byte type = in.readByte();
+        if (type == USER)
+        {
+            return User.create(
+                in.readLong(),
+                readString(in),
+                readString(in),
+                readString(in),
+                readString(in),
+                readString(in),
+                readString(in));
+        }
+        if (type == PRODUCT)
+        {
+            return Product.create(in.readLong(), readString(in), readString(in), in.readLong());
+        }
+        if (type == ORDER)
+        {
+            Order order = new Order();
+            order.setId(in.readLong());
+            order.setUser(reference(in.readLong(), users, User::new));
+            order.setProduct(reference(in.readLong(), products, Product::new));
+            order.setSalesTax(in.readLong());
+            order.setDateTime(readInstant(in));
+            order.setDateTimeDelivered(readInstant(in));
+            byte status = in.readByte();
+            order.setStatus((status < 0) ? null : STATUSES[status]);
+            return order;
+        }
+        throw new IOException("Unknown record type " + type);
+    }
+
+    /**
+     * Hooks an order back up to the record it points to. If that record has since been deleted, the order still
+     * gets a bare record w/ just the id so that it doesn't forget who/what it was for.
+     */
+    private static <T extends BusinessObject> T reference(long id, LongFunction<T> lookup, Supplier<T> blank)
+    {
+        if (id == BusinessObject.NO_ID)
+            return null;
+
+        T model = lookup.apply(id);
+        if (model == null)
+        {
+            model = blank.get();
+            model.setId(id);
+        }
+        return model;
+    }
+
+    private static void writeString(DataOutput out, String value) throws IOException
+    {
+        out.writeBoolean(value != null);
+        if (value != null)
+            out.writeUTF(value);
+    }
+
+    private static String readString(DataInput in) throws IOException
+    {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeInstant(DataOutput out, Instant value) throws IOException
+    {
+        out.writeBoolean(value != null);
+        if (value != null)
+        {
+            out.writeLong(value.getEpochSecond());
+            out.writeInt(value.getNano());
+        }
+    }
+
+    private static Instant readInstant(DataInput in) throws IOException
+    {
+        return in.readBoolean() ? Instant.ofEpochSecond(in.readLong(), in.readInt()) : null;
+    }
+
+    private static byte typeOf(Class<? extends BusinessObject> modelType)
+    {
+        if (modelType == User.class) return USER;
+        if (modelType == Product.class) return PRODUCT;
+        if (modelType == Order.class) return ORDER;
+
+        throw new IllegalArgumentException(modelType + " is not a persistent type");
+    }
+
+    private static Class<? extends BusinessObject> classOf(byte type) throws IOException
+    {
+        if (type == USER) return User.class;
+        if (type == PRODUCT) return Product.class;
+        if (type == ORDER) return Order.class;
+
+        throw new IOException("Unknown record type " + type);
+    }
+
+    private static byte[] encode(Encoder encoder)
+    {
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            encoder.encode(new DataOutputStream(bytes));
+            return bytes.toByteArray();
+        }
+        catch (IOException e)
+        {
+            // We're only writing to memory, so this can't really happen
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Encoder
+    {
+        void encode(DataOutput out) throws IOException;
+    }
+}
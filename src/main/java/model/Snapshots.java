@@ -0,0 +1,271 @@
+package model;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+import java.util.function.LongSupplier;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Reads and writes full copies of the datastore's tables so that startup only has to replay the log written since the
+ * last snapshot rather than the whole history.
+ * <p>
+ * A snapshot is named after the log segment that follows it: "snapshot-N" holds everything written before segment N.
+ * The file is a magic number, then each record in our binary format (users and products before the orders that point
+ * to them), then the next id the datastore was going to hand out, then a CRC32 of all of that so we never load a
+ * half-written one. The next id has to be kept: working it out from the largest id in the snapshot would hand out the
+ * id of a newest record that was deleted all over again.
+ * <p>
+ * Snapshots are "fuzzy". We copy the tables while writes keep going rather than freezing them, so a record saved
+ * mid-copy may or may not make it in. That's fine because every such write also lands in the new log segment, and
+ * replaying a save or delete on top of a record that already reflects it changes nothing.
+ */
+class Snapshots
+{
+    // Bumped whenever the record format changes, so that we refuse to load a snapshot we'd misread
+    private static final int MAGIC = 0x43464455;
+
+    // Snapshots from before we kept the next id. We can still load them; we just don't learn the next id from them.
+    private static final int MAGIC_WITHOUT_NEXT_ID = 0x43464454;
+    private static final byte RECORD = 1;
+    private static final byte END = 0;
+    private static final int TRAILER_SIZE = 8;
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".bin";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Writes a snapshot of the given tables. It's written to a temp file and fsynced before it's renamed into place,
+     * so the snapshot either exists in full or not at all. The rename itself is fsynced too (see
+     * <code>syncDirectory()</code>), so once this returns it's safe to delete whatever the snapshot replaces.
+     * @param dir The directory to write the snapshot to
+     * @param segment The first log segment that the snapshot doesn't cover
+     * @param users The users to save
+     * @param products The products to save
+     * @param orders The orders to save
+     * @param nextId Reads the next id the datastore will hand out. It's read once every record has been copied, so
+     *               it's past the id of any record that made it in.
+     * @return How many records were written
+     * @throws IOException If the snapshot can't be written
+     */
+    static long write(Path dir, long segment, Collection<User> users, Collection<Product> products,
+                      Collection<Order> orders, LongSupplier nextId) throws IOException
+    {
+        Path temp = dir.resolve(PREFIX + segment + TEMP_SUFFIX);
+        long count = 0;
+        try (FileChannel channel = FileChannel.open(temp,
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            CRC32 crc = new CRC32();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new CheckedOutputStream(Channels.newOutputStream(channel), crc), 1 << 16));
+
+            out.writeInt(MAGIC);
+            for (Collection<? extends BusinessObject> table : Arrays.asList(users, products, orders))
+            {
+                for (BusinessObject model : table)
+                {
+                    out.writeByte(RECORD);
+                    Records.writeRecord(out, model);
+                    count++;
+                }
+            }
+            out.writeByte(END);
+            out.writeLong(nextId.getAsLong());
+            out.flush();
+
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE).putLong(crc.getValue());
+            trailer.flip();
+            while (trailer.hasRemaining())
+            {
+                channel.write(trailer);
+            }
+            channel.force(true);
+        }
+
+        Files.move(temp, file(dir, segment), StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(dir);
+        return count;
+    }
+
+    /**
+     * Flushes a directory's entries to disk. A rename (or a newly created file) only lives in the directory until
+     * that's fsynced, so after a crash we could come back w/ the old snapshot and log segments already deleted but no
+     * sign of the new snapshot. Windows won't open a directory as a channel, but NTFS journals its renames anyway.
+     * @param dir The directory to sync
+     * @throws IOException If the directory can't be synced
+     */
+    static void syncDirectory(Path dir) throws IOException
+    {
+        if (System.getProperty("os.name", "").startsWith("Windows"))
+            return;
+
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ))
+        {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Figures out which snapshot is the most recent.
+     * @param dir The directory to look in
+     * @return The segment number of the latest snapshot, or -1 if there aren't any
+     * @throws IOException If the directory can't be read
+     */
+    static long latest(Path dir) throws IOException
+    {
+        long latest = -1;
+        for (long segment : snapshots(dir))
+        {
+            latest = Math.max(latest, segment);
+        }
+        return latest;
+    }
+
+    /**
+     * Loads a snapshot by mapping it straight into memory and decoding records right out of the mapping, so there's
+     * no read() call or copy per record.
+     * @param dir The directory to load from
+     * @param segment The snapshot's segment number (see <code>latest()</code>)
+     * @param users Looks up the user that an order points to (they're always loaded before their orders)
+     * @param products Looks up the product that an order points to
+     * @param loaded Called w/ each record in the snapshot
+     * @return The next id the datastore was going to hand out when the snapshot was taken (0 if it's too old to say)
+     * @throws IOException If the snapshot can't be read or fails its checksum
+     */
+    static long load(Path dir, long segment, LongFunction<User> users, LongFunction<Product> products,
+                     Consumer<BusinessObject> loaded) throws IOException
+    {
+        Path file = file(dir, segment);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            long size = channel.size();
+            if (size < 4 + 1 + TRAILER_SIZE)
+                throw new IOException("Snapshot " + file + " is truncated");
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("Snapshot " + file + " is too big to map in one piece");
+
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            ByteBuffer body = mapped.duplicate();
+            body.limit((int)(size - TRAILER_SIZE));
+            CRC32 crc = new CRC32();
+            crc.update(body.duplicate());
+            if (crc.getValue() != mapped.getLong((int)(size - TRAILER_SIZE)))
+                throw new IOException("Snapshot " + file + " failed its checksum");
+
+            DataInputStream in = new DataInputStream(new BufferInput(body));
+            int magic = in.readInt();
+            if (magic != MAGIC && magic != MAGIC_WITHOUT_NEXT_ID)
+                throw new IOException(file + " is not a snapshot");
+
+            while (in.readByte() == RECORD)
+            {
+                loaded.accept(Records.readRecord(in, users, products));
+            }
+            return (magic == MAGIC) ? in.readLong() : 0;
+        }
+    }
+
+    /**
+     * Deletes any snapshot that was still being written when we went down. It was never renamed into place, so
+     * nothing needs it; it'd just sit there taking up space (and get overwritten only if we happen to snapshot at
+     * the very same segment again).
+     * @param dir The directory to clean up
+     * @throws IOException If one can't be deleted
+     */
+    static void deleteIncomplete(Path dir) throws IOException
+    {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, PREFIX + "*" + TEMP_SUFFIX))
+        {
+            for (Path file : files)
+            {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * Deletes every snapshot older than the given one.
+     * @param dir The directory to clean up
+     * @param segment The segment number of the snapshot to keep
+     * @throws IOException If a snapshot can't be deleted
+     */
+    static void deleteBefore(Path dir, long segment) throws IOException
+    {
+        for (long older : snapshots(dir))
+        {
+            if (older < segment)
+                Files.deleteIfExists(file(dir, older));
+        }
+    }
+
+    /**
+     * Lists the segment numbers of every snapshot in the given directory.
+     */
+    private static List<Long> snapshots(Path dir) throws IOException
+    {
+        List<Long> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX))
+        {
+            for (Path file : files)
+            {
+                String name = file.getFileName().toString();
+                segments.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+            }
+        }
+        return segments;
+    }
+
+    private static Path file(Path dir, long segment)
+    {
+        return dir.resolve(PREFIX + segment + SUFFIX);
+    }
+
+    /**
+     * Lets a DataInputStream read straight out of a (mapped) buffer.
+     */
+    private static class BufferInput extends InputStream
+    {
+        private final ByteBuffer buffer;
+
+        private BufferInput(ByteBuffer buffer)
+        {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read()
+        {
+            return buffer.hasRemaining() ? (buffer.get() & 0xFF) : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length)
+        {
+            if (!buffer.hasRemaining())
+                return -1;
+
+            int count = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, count);
+            return count;
+        }
+    }
+}
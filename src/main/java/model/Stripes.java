@@ -0,0 +1,100 @@
+package model;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * A fixed set of locks that writers hash their record ids onto. Writes to different records almost never contend
+ * w/ each other, but two writes to the same record are serialized so that a table and its indexes always agree on
+ * what that record looks like. Readers never touch these locks.
+ */
+class Stripes
+{
+    private final ReentrantLock[] locks;
+    private final int mask;
+
+    /**
+     * Creates enough stripes to keep contention low on this machine (a few per core, rounded up to a power of 2).
+     */
+    Stripes()
+    {
+        this(Runtime.getRuntime().availableProcessors() * 4);
+    }
+
+    /**
+     * @param minStripes The minimum number of locks to create; this is rounded up to the next power of 2
+     */
+    Stripes(int minStripes)
+    {
+        int size = (minStripes <= 1) ? 1 : Integer.highestOneBit(minStripes - 1) << 1;
+        locks = new ReentrantLock[size];
+        for (int i = 0; i < size; i++)
+            locks[i] = new ReentrantLock();
+
+        mask = size - 1;
+    }
+
+    /**
+     * Runs the given work while holding the lock that guards the given record id.
+     * @param id The id of the record being written
+     * @param work The write to perform
+     * @return Whatever the work returned
+     */
+    <T> T write(long id, Supplier<T> work)
+    {
+        ReentrantLock lock = lockFor(id);
+        lock.lock();
+        try
+        {
+            return work.get();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Runs the given work while holding the locks that guard every one of the given record ids. The locks are always
+     * taken in stripe order, so this can't deadlock w/ another multi-record write (or a single-record one).
+     * @param ids The ids of the records being written
+     * @param work The write to perform
+     * @return Whatever the work returned
+     */
+    <T> T writeAll(long[] ids, Supplier<T> work)
+    {
+        int[] stripes = new int[ids.length];
+        for (int i = 0; i < ids.length; i++)
+            stripes[i] = stripeOf(ids[i]);
+
+        int[] held = Arrays.stream(stripes).sorted().distinct().toArray();
+        int locked = 0;
+        try
+        {
+            for (int stripe : held)
+            {
+                locks[stripe].lock();
+                locked++;
+            }
+            return work.get();
+        }
+        finally
+        {
+            while (locked > 0)
+                locks[held[--locked]].unlock();
+        }
+    }
+
+    private ReentrantLock lockFor(long id)
+    {
+        return locks[stripeOf(id)];
+    }
+
+    private int stripeOf(long id)
+    {
+        // Spread the higher bits down since we only use the lowest few to pick a stripe
+        int hash = Long.hashCode(id);
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+}
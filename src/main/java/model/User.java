@@ -1,13 +1,11 @@
 package model;
 
-import java.util.Objects;
-
 /**
  * A user from the system
  */
 public class User implements BusinessObject
 {
-    private String id;
+    private long id;
     private String firstName;
     private String lastName;
     private String address;
@@ -16,13 +14,13 @@ public class User implements BusinessObject
     private String postalCode;
 
     @Override
-    public String getId()
+    public long getId()
     {
         return id;
     }
 
     @Override
-    public void setId(String id)
+    public void setId(long id)
     {
         this.id = id;
     }
@@ -90,22 +88,17 @@ public class User implements BusinessObject
     @Override
     public int hashCode()
     {
-        return (getClass().getSimpleName() + ":" + getId()).hashCode();
+        return Long.hashCode(getId());
     }
 
     @Override
     public boolean equals(Object other)
     {
-        if (other != null && other.getClass() == getClass())
-        {
-            BusinessObject businessObject = (BusinessObject) other;
-            return Objects.equals(getId(), businessObject.getId());
-        }
-        return false;
+        return (other != null) && (other.getClass() == getClass()) && ((BusinessObject)other).getId() == getId();
     }
 
     public static User create(
-        String id,
+        long id,
         String firstName,
         String lastName,
         String address,
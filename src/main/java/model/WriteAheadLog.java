@@ -0,0 +1,377 @@
+package model;
+
+import util.ExecutorStrategy;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of every change made to the datastore, so that we can rebuild it after a restart. Each entry is
+ * framed as [length][crc32][payload], which lets us spot (and drop) an entry that was only half written when the
+ * process died.
+ * <p>
+ * Writes are group committed. Appending just queues the entry; a single writer thread grabs everything that's queued,
+ * writes it all w/ one gathering write, and then fsyncs once for the whole group. While that fsync is in progress,
+ * the next group piles up behind it, so the busier we get the more writes share each fsync.
+ * <p>
+ * The log is split into numbered segment files. A snapshot rolls the log over to a brand new segment first, so that
+ * once the snapshot is safely written, every older segment is redundant and can be deleted.
+ */
+class WriteAheadLog implements Closeable
+{
+    private static final int HEADER_SIZE = 8;
+    private static final String PREFIX = "datastore-";
+    private static final String SUFFIX = ".log";
+
+    private final Path dir;
+    private final ExecutorService writer;
+    private final ConcurrentLinkedQueue<Pending> queue;
+    private final AtomicBoolean flushing;
+    private final LongAdder appends;
+    private final LongAdder syncs;
+
+    // The segment we're currently appending to. Only the writer thread touches these once we're up and running.
+    private FileChannel channel;
+    private long segment;
+
+    // Once a write or fsync fails, we can no longer promise anything about what's on disk, so we refuse to go on
+    private volatile IOException failure;
+
+    /**
+     * Opens the log in the given directory and replays every entry in every segment from the given one on. A torn
+     * entry at the end of the last segment (from a crash mid-write) is cut off so that new entries are appended right
+     * after the last good one.
+     * @param dir The directory that holds the log's segments
+     * @param firstSegment The oldest segment we care about (older ones are already covered by a snapshot)
+     * @param replay Called w/ the payload of each existing entry, oldest first
+     * @throws IOException If the log can't be opened or read, or a segment other than the last one is damaged
+     */
+    WriteAheadLog(Path dir, long firstSegment, Consumer<ByteBuffer> replay) throws IOException
+    {
+        this.dir = dir;
+        queue = new ConcurrentLinkedQueue<>();
+        flushing = new AtomicBoolean();
+        writer = ExecutorStrategy.boundedPool("wal-writer-", 1);
+        appends = new LongAdder();
+        syncs = new LongAdder();
+
+        List<Long> segments = new ArrayList<>();
+        for (long number : segments(dir))
+        {
+            if (number >= firstSegment)
+                segments.add(number);
+        }
+
+        segment = segments.isEmpty() ? firstSegment : segments.get(segments.size() - 1);
+        for (long number : segments)
+        {
+            if (number == segment)
+                break;
+
+            try (FileChannel sealed = FileChannel.open(segmentFile(number), StandardOpenOption.READ))
+            {
+                if (replay(sealed, replay) != sealed.size())
+                    throw new IOException("Log segment " + segmentFile(number) + " is damaged");
+            }
+        }
+
+        channel = FileChannel.open(segmentFile(segment),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long end = replay(channel, replay);
+        channel.truncate(end);
+        channel.position(end);
+    }
+
+    /**
+     * Queues up an entry to be written w/ the next group.
+     * @param payload The encoded change
+     * @param onDurable Runs on the writer thread once the entry is on disk, before the future completes (and before
+     *                  the log can roll past it). It doesn't run at all if the write fails.
+     * @return A future that completes once the entry (and everything queued before it) is safely on disk
+     */
+    CompletableFuture<Void> append(byte[] payload, Runnable onDurable)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+
+        ByteBuffer entry = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        entry.putInt(payload.length).putInt((int)crc.getValue()).put(payload);
+        entry.flip();
+
+        Pending pending = new Pending(entry, onDurable);
+        queue.add(pending);
+        appends.increment();
+
+        if (flushing.compareAndSet(false, true))
+        {
+            writer.execute(this::drain);
+        }
+        return pending.durable;
+    }
+
+    /**
+     * Seals the current segment and starts appending to a brand new one. Entries that are still queued when this
+     * happens land in the new segment.
+     * @return A future that completes w/ the new segment's number once the switch has happened
+     */
+    CompletableFuture<Long> roll()
+    {
+        return CompletableFuture.supplyAsync(() -> {
+            try
+            {
+                FileChannel next = FileChannel.open(segmentFile(segment + 1),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                channel.close();
+                channel = next;
+                return ++segment;
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        }, writer);
+    }
+
+    /**
+     * Deletes every (sealed) segment older than the given one. Only do this once those segments are covered by a
+     * snapshot that's safely on disk.
+     * @param number The oldest segment to keep
+     * @throws IOException If a segment can't be deleted
+     */
+    void deleteBefore(long number) throws IOException
+    {
+        for (long older : segments(dir))
+        {
+            if (older < number)
+                Files.deleteIfExists(segmentFile(older));
+        }
+    }
+
+    /**
+     * The total number of entries appended so far, handy for telling whether anything has changed.
+     * @return The append count
+     */
+    long appends()
+    {
+        return appends.sum();
+    }
+
+    /**
+     * Summarizes how many entries we've written and how many fsyncs it took.
+     * @return The current counter values by name
+     */
+    Map<String, Long> stats()
+    {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("appends", appends.sum());
+        stats.put("syncs", syncs.sum());
+        return stats;
+    }
+
+    /**
+     * Flushes whatever is still queued and closes the file.
+     * @throws IOException If the last flush or the close fails
+     */
+    @Override
+    public void close() throws IOException
+    {
+        writer.shutdown();
+        try
+        {
+            writer.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        drain();
+        channel.close();
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Keeps writing groups until the queue is empty. Only one thread is ever in here at a time (whoever flipped the
+     * "flushing" flag), and we re-check the queue after clearing the flag so that an entry queued right as we finish
+     * can't get stranded.
+     */
+    private void drain()
+    {
+        do
+        {
+            List<Pending> group = new ArrayList<>();
+            for (Pending pending = queue.poll(); pending != null; pending = queue.poll())
+            {
+                group.add(pending);
+            }
+            if (!group.isEmpty())
+            {
+                commit(group);
+            }
+            flushing.set(false);
+        }
+        while (!queue.isEmpty() && flushing.compareAndSet(false, true));
+    }
+
+    /**
+     * Writes a group of entries and fsyncs them together, then lets each of their callers know how it went.
+     * @param group The entries to write, in order
+     */
+    private void commit(List<Pending> group)
+    {
+        try
+        {
+            if (failure != null)
+                throw failure;
+
+            ByteBuffer[] buffers = new ByteBuffer[group.size()];
+            long remaining = 0;
+            for (int i = 0; i < buffers.length; i++)
+            {
+                buffers[i] = group.get(i).entry;
+                remaining += buffers[i].remaining();
+            }
+            while (remaining > 0)
+            {
+                remaining -= channel.write(buffers);
+            }
+
+            channel.force(false);
+            syncs.increment();
+            for (Pending pending : group)
+            {
+                pending.done();
+            }
+        }
+        catch (IOException e)
+        {
+            failure = e;
+            for (Pending pending : group)
+            {
+                pending.durable.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Reads every intact entry from the start of the file.
+     * @param replay Called w/ the payload of each entry
+     * @return The position just after the last intact entry
+     */
+    private static long replay(FileChannel channel, Consumer<ByteBuffer> replay) throws IOException
+    {
+        long size = channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (position + HEADER_SIZE <= size)
+        {
+            header.clear();
+            readFully(channel, header, position);
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length < 0 || position + HEADER_SIZE + length > size)
+                break;
+
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(channel, payload, position + HEADER_SIZE);
+            CRC32 crc = new CRC32();
+            crc.update(payload.array(), 0, length);
+            if ((int)crc.getValue() != checksum)
+                break;
+
+            replay.accept(payload);
+            position += HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    /**
+     * Fills the buffer from the given position in the file and flips it so it's ready to be read.
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("Unexpected end of log");
+        }
+        buffer.flip();
+    }
+
+    private Path segmentFile(long number)
+    {
+        return dir.resolve(String.format("%s%016d%s", PREFIX, number, SUFFIX));
+    }
+
+    /**
+     * Lists the numbers of the segments in the given directory, oldest first.
+     */
+    private static List<Long> segments(Path dir) throws IOException
+    {
+        List<Long> numbers = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX))
+        {
+            for (Path file : files)
+            {
+                String name = file.getFileName().toString();
+                numbers.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+            }
+        }
+        Collections.sort(numbers);
+        return numbers;
+    }
+
+    /**
+     * An entry waiting for its group to be written.
+     */
+    private static class Pending
+    {
+        private final ByteBuffer entry;
+        private final Runnable onDurable;
+        private final CompletableFuture<Void> durable;
+
+        private Pending(ByteBuffer entry, Runnable onDurable)
+        {
+            this.entry = entry;
+            this.onDurable = onDurable;
+            this.durable = new CompletableFuture<>();
+        }
+
+        /**
+         * The entry is on disk, so let the appender know. A callback that blows up only fails its own entry.
+         */
+        private void done()
+        {
+            try
+            {
+                onDurable.run();
+                durable.complete(null);
+            }
+            catch (Throwable t)
+            {
+                durable.completeExceptionally(t);
+            }
+        }
+    }
+}
@@ -1,29 +1,71 @@
 package services;
 
+import model.BusinessObject;
 import model.Datastore;
 import model.Order;
+import model.Page;
 import model.Product;
 import model.User;
+import util.AsyncCache;
+import util.Bulkhead;
+import util.Deadline;
+import util.ExecutorStrategy;
 import util.Futures;
 import util.OrderStatus;
+import util.StageMetrics;
+import util.Utils;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.Instant;
-import java.util.Comparator;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
-import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
-import java.util.stream.Collectors;
+import java.util.concurrent.Executor;
 
 /**
  * A super simple service that places orders and looks up their status.
  */
 public class OrderService
 {
+    // Orders change status as they move along, but every change we make evicts the order, so the TTL mostly just
+    // keeps orders that nobody is looking at anymore from sitting in memory.
+    private static final Duration ORDER_TTL = Duration.ofSeconds(30);
+    private static final int MAX_ORDERS = 10_000;
+
+    // Keeps any one page of order history from getting out of hand no matter what the caller asks for
+    private static final int MAX_PAGE_SIZE = 1_000;
+
+    // The hops of placeOrder() (and the whole thing end to end) so /metrics can tell us which one is slow
+    private static final StageMetrics.Stage PLACE_ORDER = StageMetrics.stage("order.place");
+    private static final StageMetrics.Stage BUILD_ORDER = StageMetrics.stage("order.place.build");
+    private static final StageMetrics.Stage SALES_TAX = StageMetrics.stage("order.place.salesTax");
+    private static final StageMetrics.Stage SAVE_ORDER = StageMetrics.stage("order.place.save");
+
     private Datastore datastore;
+    private Executor executor;
+    private AsyncCache<Long, Order> cache;
+    private Bulkhead bulkhead;
 
     public OrderService(Datastore datastore)
+    {
+        this(datastore, ExecutorStrategy.CALLER.create());
+    }
+
+    public OrderService(Datastore datastore, Executor executor)
     {
         this.datastore = datastore;
+        this.executor = executor;
+        this.cache = new AsyncCache<>(MAX_ORDERS, ORDER_TTL);
+        // Every service has its own bulkhead, so a flood of order writes gets turned away here rather than eating the
+        // capacity that product and user reads need
+        this.bulkhead = new Bulkhead("order");
+
+        datastore.onChange(model -> {
+            if (model instanceof Order)
+                cache.invalidate(model.getId());
+        });
     }
 
     /**
@@ -31,9 +73,38 @@ public class OrderService
      * @param id The order id
      * @return A future that completes w/ the matching order
      */
-    public CompletableFuture<Order> order(String id)
+    public CompletableFuture<Order> order(long id)
+    {
+        return order(id, Deadline.NONE);
+    }
+
+    /**
+     * Same as <code>order(id)</code>, but gives up once the caller's deadline passes.
+     * @param id The order id
+     * @param deadline When the caller needs the order by
+     * @return A future that completes w/ the matching order, or fails w/ a TimeoutException once the deadline passes
+     */
+    public CompletableFuture<Order> order(long id, Deadline deadline)
+    {
+        return bulkhead.call(deadline, () -> cache.get(id, key -> datastore.get(Order.class, key)));
+    }
+
+    /**
+     * Exposes how many concurrent calls we're letting into this service and how many we've turned away.
+     * @return The service's bulkhead
+     */
+    public Bulkhead bulkhead()
+    {
+        return bulkhead;
+    }
+
+    /**
+     * Exposes the hit/miss/eviction stats for our order cache.
+     * @return The order cache
+     */
+    public AsyncCache<Long, Order> cache()
     {
-        return datastore.get(Order.class, id);
+        return cache;
     }
 
     /**
@@ -44,32 +115,102 @@ public class OrderService
      */
     public CompletableFuture<Order> placeOrder(User user, Product product)
     {
-        return Futures
-            .supply(() -> {
+        return placeOrder(user, product, Deadline.NONE);
+    }
+
+    /**
+     * Same as <code>placeOrder(user, product)</code>, but on the clock. Once the deadline passes, none of the steps
+     * that haven't started yet (including saving the order) are run.
+     * @param user The user whose order we're going to place
+     * @param product The product they're ordering
+     * @param deadline When the caller needs the order placed by
+     * @return A future that completes with the newly placed/created order details, or fails w/ a TimeoutException
+     * once the deadline passes
+     */
+    public CompletableFuture<Order> placeOrder(User user, Product product, Deadline deadline)
+    {
+        return PLACE_ORDER.time(() -> bulkhead.call(deadline, () -> BUILD_ORDER
+            .supplyAsync(() -> {
                 Order order = new Order();
                 order.setUser(user);
                 order.setProduct(product);
                 order.setDateTime(Instant.now());
                 order.setStatus(OrderStatus.PLACED);
                 return order;
-            })
-            .thenCompose(this::applySalesTax)
-            .thenCompose(datastore::save);
+            }, executor, deadline)
+            .thenApply(SALES_TAX.timed(OrderService::applySalesTax))
+            .thenCompose(order -> SAVE_ORDER.time(() -> deadline.call(() -> datastore.save(order))))));
+    }
+
+    /**
+     * Places an order for each product in the user's cart. Rather than running the whole place-order chain once per
+     * item, we build every order and figure out its tax in one pass, then save them all in one grouped write. A cart
+     * of 50 items costs about the same number of hops as a cart of 1.
+     * @param user The user whose orders we're going to place
+     * @param products The products they're ordering (list a product more than once to order it more than once)
+     * @return A future that completes with the newly placed orders, in the same order as the products
+     */
+    public CompletableFuture<List<Order>> placeOrders(User user, List<Product> products)
+    {
+        return placeOrders(user, products, Deadline.NONE);
+    }
+
+    /**
+     * Same as <code>placeOrders(user, products)</code>, but on the clock. Once the deadline passes, the orders aren't
+     * built or saved if they haven't been already.
+     * @param user The user whose orders we're going to place
+     * @param products The products they're ordering
+     * @param deadline When the caller needs the orders placed by
+     * @return A future that completes with the newly placed orders, or fails w/ a TimeoutException once the deadline
+     * passes
+     */
+    public CompletableFuture<List<Order>> placeOrders(User user, List<Product> products, Deadline deadline)
+    {
+        if (products.isEmpty())
+            return Futures.of(new ArrayList<>());
+
+        return bulkhead.call(deadline, () -> Futures
+            .supplyAsync(() -> {
+                Instant now = Instant.now();
+                List<Order> cart = new ArrayList<>(products.size());
+                for (Product product : products)
+                {
+                    Order order = new Order();
+                    order.setUser(user);
+                    order.setProduct(product);
+                    order.setDateTime(now);
+                    order.setStatus(OrderStatus.PLACED);
+                    order.setSalesTax(salesTax(product));
+                    cart.add(order);
+                }
+                return cart;
+            }, executor, deadline)
+            .thenCompose(cart -> deadline.call(() -> datastore.saveAll(cart))));
     }
 
     /**
      * Calculates the required sales tax for the given order and updates it. This will modify the input order. If you
      * wanted to be "purely" functional, you'd make a copy of the order but w/ sales tax, but we don't care here...
+     * It's just a multiplication, so it runs right on the thread that built the order rather than paying for another
+     * trip through the executor's queue.
      * @param order The order whose tax we're calculating
-     * @return A future that resolves with the required sales tax
+     * @return The same order, now w/ its sales tax
+     */
+    private static Order applySalesTax(Order order)
+    {
+        order.setSalesTax(salesTax(order.getProduct()));
+        return order;
+    }
+
+    /**
+     * Figures out how much sales tax is due on a single product.
+     * @param product The product being ordered
+     * @return The tax (in cents)
      */
-    private CompletableFuture<Order> applySalesTax(Order order)
+    private static long salesTax(Product product)
     {
         // Yes, I know that 7% is not a universal sales tax but you get the idea...
-        return Futures.supply(() -> {
-            order.setSalesTax((long)(order.getProduct().getPrice() * 0.07));
-            return order;
-        });
+        return (long)(product.getPrice() * 0.07);
     }
 
     /**
@@ -78,11 +219,79 @@ public class OrderService
      * @param status The new status for the order
      * @return The updated order data
      */
-    public CompletableFuture<Order> updateOrderStatus(String id, OrderStatus status)
+    public CompletableFuture<Order> updateOrderStatus(long id, OrderStatus status)
+    {
+        return updateOrderStatus(id, status, Deadline.NONE);
+    }
+
+    /**
+     * Same as <code>updateOrderStatus(id, status)</code>, but on the clock. Once the deadline passes, the change isn't
+     * made or saved if it hasn't been already.
+     * @param id The order to update
+     * @param status The new status for the order
+     * @param deadline When the caller needs the update done by
+     * @return The updated order data, or a TimeoutException once the deadline passes
+     */
+    public CompletableFuture<Order> updateOrderStatus(long id, OrderStatus status, Deadline deadline)
+    {
+        // The lookup takes its own spot in the bulkhead and gives it back before we take one for the update, so
+        // we never hold two at once and can't deadlock ourselves when we're at the limit. We change a copy rather
+        // than the order itself, which is the one in the datastore and cache; the datastore swaps the copy in once
+        // the change is durable, so a save that fails never leaves a status behind that's gone after a restart.
+        return order(id, deadline)
+            .thenCompose(order -> bulkhead.call(deadline, () -> Futures
+                .supplyAsync(() -> order.copy().status(status), executor, deadline)
+                .thenCompose(updated -> deadline.call(() -> datastore.save(updated)))));
+    }
+
+    /**
+     * Retrieves one page of the orders placed by the given user, oldest first. Only the requested page is ever pulled
+     * from the datastore, so paging through a huge order history costs the same per page from start to finish.
+     * @param user The user whose order history you want
+     * @param cursor The "next" cursor from the previous page, or null/empty to start at the user's first order
+     * @param limit The most orders to return (capped at 1000)
+     * @return A future that completes with the page of orders, or fails w/ an IllegalArgumentException if the
+     * cursor or limit are bogus
+     */
+    public CompletableFuture<Page<Order>> orderHistory(User user, String cursor, int limit)
+    {
+        return orderHistory(user, cursor, limit, Deadline.NONE);
+    }
+
+    /**
+     * Same as <code>orderHistory(user, cursor, limit)</code>, but gives up once the caller's deadline passes.
+     * @param user The user whose order history you want
+     * @param cursor The "next" cursor from the previous page, or null/empty to start at the user's first order
+     * @param limit The most orders to return (capped at 1000)
+     * @param deadline When the caller needs the page by
+     * @return A future that completes with the page of orders, or fails w/ a TimeoutException once the deadline passes
+     */
+    public CompletableFuture<Page<Order>> orderHistory(User user, String cursor, int limit, Deadline deadline)
     {
-        return order(id)
-            .thenApply(order -> order.status(status))
-            .thenCompose(datastore::save);
+        if (limit < 1)
+            return Futures.error(new IllegalArgumentException("The page limit must be at least 1 but was " + limit));
+
+        Cursor after;
+        try
+        {
+            after = Cursor.decode(cursor);
+        }
+        catch (IllegalArgumentException e)
+        {
+            return Futures.error(e);
+        }
+
+        // Ask for one extra order so we know whether or not there's another page w/o an extra round trip
+        int pageSize = Math.min(limit, MAX_PAGE_SIZE);
+        return bulkhead.call(deadline, () -> datastore
+            .ordersByUser(user.getId(), after.dateTime, after.id, pageSize + 1)
+            .thenApplyAsync(orders -> {
+                if (orders.size() <= pageSize)
+                    return new Page<>(orders, null);
+
+                List<Order> page = orders.subList(0, pageSize);
+                return new Page<>(page, Cursor.encode(page.get(pageSize - 1)));
+            }, executor));
     }
 
     /**
@@ -92,10 +301,74 @@ public class OrderService
      */
     public CompletableFuture<List<Order>> orderHistory(User user)
     {
-        return datastore.get(Order.class)
-            .thenApply(orders -> orders.stream()
-                .filter(o -> Objects.equals(o.getUser(), user))
-                .sorted(Comparator.comparing(Order::getDateTime))
-                .collect(Collectors.toList()));
+        return orderHistory(user, Deadline.NONE);
+    }
+
+    /**
+     * Same as <code>orderHistory(user)</code>, but gives up once the caller's deadline passes.
+     * @param user The user whose order history you want
+     * @param deadline When the caller needs the orders by
+     * @return A future that completes with all of the target orders, or fails w/ a TimeoutException once the deadline
+     * passes
+     */
+    public CompletableFuture<List<Order>> orderHistory(User user, Deadline deadline)
+    {
+        // The whole history is the most expensive read we've got, so it's the last thing that should skip the line
+        return bulkhead.call(deadline, () -> datastore.ordersByUser(user.getId())
+            .thenApplyAsync(ArrayList::new, executor));
+    }
+
+    /**
+     * Where a page of order history left off: the date/time and id of its last order, since that's exactly how the
+     * history is sorted. On the wire, it's an opaque URL-safe string so that callers don't get any ideas.
+     */
+    private static class Cursor
+    {
+        private static final Cursor START = new Cursor(null, BusinessObject.NO_ID);
+
+        private final Instant dateTime;
+        private final long id;
+
+        private Cursor(Instant dateTime, long id)
+        {
+            this.dateTime = dateTime;
+            this.id = id;
+        }
+
+        private static String encode(Order order)
+        {
+            Instant dateTime = order.getDateTime();
+            String raw = ((dateTime == null) ? "" : dateTime.getEpochSecond() + "." + dateTime.getNano())
+                + ":" + order.getId();
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private static Cursor decode(String cursor)
+        {
+            if (!Utils.hasValue(cursor))
+                return START;
+
+            try
+            {
+                String raw = new String(Base64.getUrlDecoder().decode(cursor.trim()), StandardCharsets.UTF_8);
+                int colon = raw.indexOf(':');
+                String time = raw.substring(0, colon);
+                long id = Long.parseLong(raw.substring(colon + 1));
+
+                if (time.isEmpty())
+                    return new Cursor(null, id);
+
+                int dot = time.indexOf('.');
+                Instant dateTime = Instant.ofEpochSecond(
+                    Long.parseLong(time.substring(0, dot)),
+                    Long.parseLong(time.substring(dot + 1)));
+                return new Cursor(dateTime, id);
+            }
+            catch (RuntimeException e)
+            {
+                // No cause on purpose; the API reports errors by their root cause and this is the one that matters
+                throw new IllegalArgumentException("Invalid order history cursor: " + cursor);
+            }
+        }
     }
 }
@@ -1,33 +1,143 @@
 package services;
 
+import model.BusinessObject;
 import model.Datastore;
 import model.Product;
+import util.AsyncCache;
+import util.BatchLoader;
+import util.Bulkhead;
+import util.Deadline;
+import util.ExecutorStrategy;
+import util.Futures;
+import util.HedgePolicy;
+import util.StageMetrics;
 
-import java.util.Objects;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.stream.Collectors;
+import java.util.concurrent.Executor;
 
 /**
  * Manages and interacts with the store's inventory of products to sell.
  */
 public class ProductService
 {
+    // The catalog changes far less often than it's browsed, and any change we make evicts what it touches anyway
+    private static final Duration PRODUCT_TTL = Duration.ofMinutes(5);
+    private static final Duration CATEGORY_TTL = Duration.ofMinutes(1);
+    private static final int MAX_PRODUCTS = 10_000;
+    private static final int MAX_CATEGORIES = 1_000;
+
+    // Times every lookup from the call to the product showing up, whether it's a cache hit or a trip to the datastore
+    private static final StageMetrics.Stage LOOKUP = StageMetrics.stage("product.lookup");
+
     private Datastore datastore;
+    private Executor executor;
+    private BatchLoader<Long, Product> batches;
+    private HedgePolicy hedging;
+    private Bulkhead bulkhead;
+    private AsyncCache<Long, Product> cache;
+    private AsyncCache<String, Set<Product>> categoryCache;
 
     public ProductService(Datastore datastore)
+    {
+        this(datastore, ExecutorStrategy.CALLER.create());
+    }
+
+    public ProductService(Datastore datastore, Executor executor)
     {
         this.datastore = datastore;
+        this.executor = executor;
+        this.hedging = HedgePolicy.fromSystemProperties();
+        this.batches = new BatchLoader<>(
+            ids -> Futures.hedge(() -> datastore.getAll(Product.class, ids), hedging),
+            id -> new NoSuchElementException("Product " + id + " does not exist"));
+        this.cache = new AsyncCache<>(MAX_PRODUCTS, PRODUCT_TTL);
+        this.categoryCache = new AsyncCache<>(MAX_CATEGORIES, CATEGORY_TTL);
+        this.bulkhead = new Bulkhead("product");
+
+        // By the time we hear about a change, we can't tell which category a product used to be in, so any product
+        // change clears all of the category listings. Product writes are rare enough that this doesn't hurt.
+        datastore.onChange(model -> {
+            if (model instanceof Product)
+            {
+                cache.invalidate(model.getId());
+                categoryCache.invalidateAll();
+            }
+        });
     }
 
     /**
-     * Retrieves a product from the inventory
+     * Retrieves a product from the inventory. This is usually served from our cache; when it's not, concurrent
+     * misses on the same (probably popular) product share a single lookup (the cache's "coalesced" count), and
+     * lookups for different products that arrive together are batched into one datastore round trip. If that round
+     * trip gets stuck in the slow tail, a backup read is hedged against it.
      * @param id The id of the product to look up
      * @return A future that completes w/ the matching product
      */
-    public CompletableFuture<Product> product(String id)
+    public CompletableFuture<Product> product(long id)
+    {
+        return product(id, Deadline.NONE);
+    }
+
+    /**
+     * Same as <code>product(id)</code>, but gives up once the caller's deadline passes. The lookup itself may be
+     * shared w/ other callers, so it keeps going for them; only this caller's future fails.
+     * @param id The id of the product to look up
+     * @param deadline When the caller needs the product by
+     * @return A future that completes w/ the matching product, or fails w/ a TimeoutException once the deadline passes
+     */
+    public CompletableFuture<Product> product(long id, Deadline deadline)
+    {
+        return LOOKUP.time(() -> bulkhead.call(deadline, () -> cache.get(id, batches::load)));
+    }
+
+    /**
+     * Exposes how many product lookups it took to reach the datastore and how many round trips they were batched into.
+     * @return The batch loader
+     */
+    public BatchLoader<Long, Product> batches()
+    {
+        return batches;
+    }
+
+    /**
+     * Exposes how many concurrent calls we're letting into this service and how many we've turned away.
+     * @return The service's bulkhead
+     */
+    public Bulkhead bulkhead()
     {
-        return datastore.get(Product.class, id);
+        return bulkhead;
+    }
+
+    /**
+     * Exposes how often our datastore reads needed a backup call and how often the backup won.
+     * @return The hedging policy for our datastore reads
+     */
+    public HedgePolicy hedging()
+    {
+        return hedging;
+    }
+
+    /**
+     * Exposes the hit/miss/eviction stats for our product cache.
+     * @return The product-by-id cache
+     */
+    public AsyncCache<Long, Product> cache()
+    {
+        return cache;
+    }
+
+    /**
+     * Exposes the hit/miss/eviction stats for our category listing cache.
+     * @return The products-by-category cache
+     */
+    public AsyncCache<String, Set<Product>> categoryCache()
+    {
+        return categoryCache;
     }
 
     /**
@@ -39,19 +149,30 @@ public class ProductService
      */
     public CompletableFuture<Product> createProduct(String name, String category, long price)
     {
-        return datastore.save(Product.create("", name, category, price));
+        return datastore.save(Product.create(BusinessObject.NO_ID, name, category, price));
     }
 
     /**
-     * Lists all products that belong to the given category
+     * Lists all products that belong to the given category. Listings are cached, so the resulting set is shared w/
+     * other callers and is therefore read-only.
      * @param category The product category to scan for
      * @return A future that resolves w/ the matching products
      */
     public CompletableFuture<Set<Product>> productsByCategory(String category)
     {
-        return datastore.get(Product.class)
-            .thenApply(products -> products.stream()
-                .filter(p -> Objects.equals(p.getCategory(), category))
-                .collect(Collectors.toSet()));
+        return productsByCategory(category, Deadline.NONE);
+    }
+
+    /**
+     * Same as <code>productsByCategory(category)</code>, but gives up once the caller's deadline passes.
+     * @param category The product category to scan for
+     * @param deadline When the caller needs the listing by
+     * @return A future that resolves w/ the matching products, or fails w/ a TimeoutException once the deadline passes
+     */
+    public CompletableFuture<Set<Product>> productsByCategory(String category, Deadline deadline)
+    {
+        return bulkhead.call(deadline, () -> categoryCache.get(category, key -> datastore
+            .productsByCategory(key)
+            .thenApplyAsync(products -> Collections.unmodifiableSet(new HashSet<>(products)), executor)));
     }
 }
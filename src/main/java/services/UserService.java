@@ -2,7 +2,16 @@ package services;
 
 import model.Datastore;
 import model.User;
+import util.AsyncCache;
+import util.BatchLoader;
+import util.Bulkhead;
+import util.Deadline;
+import util.Futures;
+import util.HedgePolicy;
+import util.StageMetrics;
 
+import java.time.Duration;
+import java.util.NoSuchElementException;
 import java.util.concurrent.CompletableFuture;
 
 /**
@@ -10,20 +19,94 @@ import java.util.concurrent.CompletableFuture;
  */
 public class UserService
 {
+    // Users hardly ever change and any change we make evicts them anyway, so the TTL just bounds how stale an edit
+    // made behind our backs can get.
+    private static final Duration USER_TTL = Duration.ofMinutes(1);
+    private static final int MAX_USERS = 10_000;
+
+    // Times every lookup from the call to the user showing up, whether it's a cache hit or a trip to the datastore
+    private static final StageMetrics.Stage LOOKUP = StageMetrics.stage("user.lookup");
+
     private Datastore datastore;
+    private BatchLoader<Long, User> batches;
+    private HedgePolicy hedging;
+    private Bulkhead bulkhead;
+    private AsyncCache<Long, User> cache;
 
     public UserService(Datastore datastore)
     {
         this.datastore = datastore;
+        this.hedging = HedgePolicy.fromSystemProperties();
+        this.batches = new BatchLoader<>(
+            ids -> Futures.hedge(() -> datastore.getAll(User.class, ids), hedging),
+            id -> new NoSuchElementException("User " + id + " does not exist"));
+        this.cache = new AsyncCache<>(MAX_USERS, USER_TTL);
+        this.bulkhead = new Bulkhead("user");
+
+        datastore.onChange(model -> {
+            if (model instanceof User)
+                cache.invalidate(model.getId());
+        });
     }
 
     /**
-     * Retrieves the user info w/ the given id
+     * Retrieves the user info w/ the given id. This is usually served from our cache; when it's not, concurrent
+     * misses on the same user share a single lookup (the cache's "coalesced" count), and lookups for different users
+     * that arrive together are batched into one datastore round trip. If that round trip gets stuck in the slow tail,
+     * a backup read is hedged against it.
      * @param id The target user id
      * @return A future that completes w/ the user
      */
-    public CompletableFuture<User> user(String id)
+    public CompletableFuture<User> user(long id)
+    {
+        return user(id, Deadline.NONE);
+    }
+
+    /**
+     * Same as <code>user(id)</code>, but gives up once the caller's deadline passes. The lookup itself may be shared
+     * w/ other callers, so it keeps going for them; only this caller's future fails.
+     * @param id The target user id
+     * @param deadline When the caller needs the user by
+     * @return A future that completes w/ the user, or fails w/ a TimeoutException once the deadline passes
+     */
+    public CompletableFuture<User> user(long id, Deadline deadline)
+    {
+        return LOOKUP.time(() -> bulkhead.call(deadline, () -> cache.get(id, batches::load)));
+    }
+
+    /**
+     * Exposes how many user lookups it took to reach the datastore and how many round trips they were batched into.
+     * @return The batch loader
+     */
+    public BatchLoader<Long, User> batches()
+    {
+        return batches;
+    }
+
+    /**
+     * Exposes how many concurrent calls we're letting into this service and how many we've turned away.
+     * @return The service's bulkhead
+     */
+    public Bulkhead bulkhead()
+    {
+        return bulkhead;
+    }
+
+    /**
+     * Exposes how often our datastore reads needed a backup call and how often the backup won.
+     * @return The hedging policy for our datastore reads
+     */
+    public HedgePolicy hedging()
+    {
+        return hedging;
+    }
+
+    /**
+     * Exposes the hit/miss/eviction stats for our user cache.
+     * @return The user cache
+     */
+    public AsyncCache<Long, User> cache()
     {
-        return datastore.get(User.class, id);
+        return cache;
     }
 }
@@ -0,0 +1,101 @@
+package util;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * The machinery behind <code>Futures.all()</code>. Rather than waiting on <code>CompletableFuture.allOf()</code> and
+ * then making another pass to join() every input, each input drops its value straight into its own slot of a
+ * pre-sized array as it completes. Whoever counts the last one down completes the aggregate future, and the array
+ * becomes the resulting list as-is.
+ * <p>
+ * We extend AtomicInteger (it's the countdown) and use a field updater for the error so that the whole thing costs
+ * one object plus the array, not a handful of extra atomics for every fan-out.
+ */
+@SuppressWarnings("serial")
+class AllOf<T> extends AtomicInteger
+{
+    // The updater has to be for the raw class; there's no such thing as AllOf<T>.class
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<AllOf, Throwable> FIRST_ERROR =
+        AtomicReferenceFieldUpdater.newUpdater(AllOf.class, Throwable.class, "firstError");
+
+    private final Object[] results;
+    private final CompletableFuture<List<T>> result;
+    private volatile Throwable firstError;
+
+    AllOf(int size)
+    {
+        super(size);
+        this.results = new Object[size];
+        this.result = new CompletableFuture<>();
+    }
+
+    /**
+     * Hooks up every input future. Inputs that are already done are read right away w/o registering a callback.
+     * @param futures The futures to wait for
+     * @return A future that completes w/ every input's value (in input order) once they're all done
+     */
+    CompletableFuture<List<T>> start(List<? extends CompletableFuture<? extends T>> futures)
+    {
+        int index = 0;
+        for (CompletableFuture<? extends T> future : futures)
+        {
+            int slot = index++;
+            if (future.isDone())
+            {
+                readNow(slot, future);
+            }
+            else
+            {
+                future.whenComplete((value, error) -> done(slot, value, error));
+            }
+        }
+        return result;
+    }
+
+    private void readNow(int slot, CompletableFuture<? extends T> future)
+    {
+        try
+        {
+            done(slot, future.getNow(null), null);
+        }
+        catch (Throwable t)
+        {
+            done(slot, null, t);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void done(int slot, Object value, Throwable error)
+    {
+        if (error == null)
+        {
+            results[slot] = value;
+        }
+        else
+        {
+            FIRST_ERROR.compareAndSet(this, null, error);
+        }
+
+        // The decrement publishes our slot write to whoever ends up finishing
+        if (decrementAndGet() != 0)
+            return;
+
+        Throwable failure = firstError;
+        if (failure == null)
+        {
+            result.complete((List<T>)Arrays.asList(results));
+        }
+        else
+        {
+            result.completeExceptionally((failure instanceof CompletionException)
+                ? failure
+                : new CompletionException(failure));
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package util;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * A read-through cache of futures. A miss caches the loader's future right away, so anybody else asking for the same
+ * key while it's still loading shares that one load rather than starting their own (counted as "coalesced" in the
+ * stats). Loads that fail aren't cached.
+ * <p>
+ * Entries live for a fixed TTL after they're loaded. Hits on an entry that's getting close to expiring kick off a
+ * background reload (refresh-ahead) while still handing back the current value, so hot keys never have to wait on a
+ * miss. Once the cache is full, each write evicts the least recently used entry.
+ * <p>
+ * LRU order is kept in a handful of segments, each its own small access-ordered map behind its own lock, so hits on
+ * different keys rarely contend w/ each other. The flip side is that eviction is LRU per segment rather than
+ * strictly across the whole cache, which is plenty close for our purposes.
+ * @param <K> The type of key being cached (e.g. an id)
+ * @param <V> The type of value being cached
+ */
+public class AsyncCache<K, V>
+{
+    private final Segment<K, V>[] segments;
+    private final int mask;
+    private final long ttlNanos;
+    private final long refreshNanos;
+
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder coalesced;
+    private final LongAdder evictions;
+    private final LongAdder expirations;
+    private final LongAdder refreshes;
+
+    /**
+     * Creates a cache that starts refreshing hot entries once they're 3/4 of the way to expiring.
+     * @param maxSize The most entries to hold before we start evicting
+     * @param ttl How long an entry is served after it's loaded
+     */
+    public AsyncCache(int maxSize, Duration ttl)
+    {
+        this(maxSize, ttl, ttl.multipliedBy(3).dividedBy(4));
+    }
+
+    /**
+     * @param maxSize The most entries to hold before we start evicting
+     * @param ttl How long an entry is served after it's loaded
+     * @param refreshAfter How old an entry has to be before a hit triggers a background reload (>= ttl to disable)
+     */
+    @SuppressWarnings("unchecked")
+    public AsyncCache(int maxSize, Duration ttl, Duration refreshAfter)
+    {
+        if (maxSize < 1)
+            throw new IllegalArgumentException("maxSize must be at least 1 but was " + maxSize);
+
+        hits = new LongAdder();
+        misses = new LongAdder();
+        coalesced = new LongAdder();
+        evictions = new LongAdder();
+        expirations = new LongAdder();
+        refreshes = new LongAdder();
+        ttlNanos = ttl.toNanos();
+        refreshNanos = refreshAfter.toNanos();
+
+        // A few segments per core (like Stripes), but never so many that a segment can't hold at least one entry
+        int wanted = Math.min(Runtime.getRuntime().availableProcessors() * 4, maxSize);
+        int count = Integer.highestOneBit(wanted);
+        int capacity = (maxSize + count - 1) / count;
+
+        segments = (Segment<K, V>[])new Segment<?, ?>[count];
+        for (int i = 0; i < count; i++)
+            segments[i] = new Segment<>(capacity, evictions);
+
+        mask = count - 1;
+    }
+
+    /**
+     * Retrieves the value for the given key, loading it if we don't already have a live entry for it.
+     * @param key The key to look up
+     * @param loader Starts the actual load on a miss (or a refresh)
+     * @return A future that completes w/ the cached or freshly loaded value
+     */
+    public CompletableFuture<V> get(K key, Function<K, CompletableFuture<V>> loader)
+    {
+        Segment<K, V> segment = segmentFor(key);
+        long now = System.nanoTime();
+        Cached<V> entry;
+        boolean miss = false;
+
+        synchronized (segment)
+        {
+            entry = segment.get(key);
+            if (entry != null && now - entry.loadedAt >= ttlNanos)
+            {
+                segment.remove(key);
+                expirations.increment();
+                entry = null;
+            }
+            if (entry == null)
+            {
+                entry = new Cached<>(new CompletableFuture<>(), now);
+                segment.put(key, entry);
+                miss = true;
+            }
+        }
+
+        if (miss)
+        {
+            misses.increment();
+            load(key, entry, loader);
+        }
+        else
+        {
+            hits.increment();
+            // A hit on a load that's still going is a lookup we saved rather than one we already had the answer to
+            if (!entry.value.isDone())
+                coalesced.increment();
+            if (now - entry.loadedAt >= refreshNanos)
+                refresh(key, entry, loader);
+        }
+        return follow(entry.value);
+    }
+
+    /**
+     * Drops the entry for the given key (e.g. because the underlying record just changed). The next request for it
+     * will be a miss, and a refresh that was already in progress for it will be thrown away.
+     * @param key The key to forget about
+     */
+    public void invalidate(K key)
+    {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment)
+        {
+            segment.remove(key);
+        }
+    }
+
+    /**
+     * Drops every entry in the cache.
+     */
+    public void invalidateAll()
+    {
+        for (Segment<K, V> segment : segments)
+        {
+            synchronized (segment)
+            {
+                segment.clear();
+            }
+        }
+    }
+
+    /**
+     * Counts the entries currently held, including ones that are still loading or have expired but haven't been
+     * looked at since.
+     * @return The number of entries in the cache
+     */
+    public long size()
+    {
+        long size = 0;
+        for (Segment<K, V> segment : segments)
+        {
+            synchronized (segment)
+            {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Summarizes the cache's counters (hits, misses, coalesced, evictions, expirations, refreshes, and size) for
+     * reporting. Coalesced hits are also counted as hits.
+     * @return The current counter values by name
+     */
+    public Map<String, Long> stats()
+    {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("hits", hits.sum());
+        stats.put("misses", misses.sum());
+        stats.put("coalesced", coalesced.sum());
+        stats.put("evictions", evictions.sum());
+        stats.put("expirations", expirations.sum());
+        stats.put("refreshes", refreshes.sum());
+        stats.put("size", size());
+        return stats;
+    }
+
+    /**
+     * Runs the loader for a brand new entry and feeds its outcome into the entry's (already cached) future. If the
+     * load fails, the entry is dropped so that the next request tries again.
+     */
+    private void load(K key, Cached<V> entry, Function<K, CompletableFuture<V>> loader)
+    {
+        start(key, loader).whenComplete((value, error) -> {
+            if (error != null)
+            {
+                remove(key, entry);
+                entry.value.completeExceptionally(error);
+            }
+            else
+            {
+                entry.value.complete(value);
+            }
+        });
+    }
+
+    /**
+     * Reloads a live entry in the background, swapping in the new value once it arrives. We only swap it in if the
+     * entry we refreshed is still the one in the cache; if it was invalidated or evicted in the meantime, the new
+     * value may already be stale so we just toss it. A failed refresh leaves the current entry alone to expire.
+     */
+    private void refresh(K key, Cached<V> entry, Function<K, CompletableFuture<V>> loader)
+    {
+        if (!entry.value.isDone() || entry.value.isCompletedExceptionally() || !entry.compareAndSet(false, true))
+            return;
+
+        refreshes.increment();
+        start(key, loader).thenAccept(value -> {
+            Segment<K, V> segment = segmentFor(key);
+            synchronized (segment)
+            {
+                segment.replace(key, entry, new Cached<>(CompletableFuture.completedFuture(value), System.nanoTime()));
+            }
+        });
+    }
+
+    private CompletableFuture<V> start(K key, Function<K, CompletableFuture<V>> loader)
+    {
+        try
+        {
+            return loader.apply(key);
+        }
+        catch (Throwable t)
+        {
+            return Futures.error(t);
+        }
+    }
+
+    private void remove(K key, Cached<V> entry)
+    {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment)
+        {
+            segment.remove(key, entry);
+        }
+    }
+
+    private Segment<K, V> segmentFor(K key)
+    {
+        // Spread the higher bits down since we only use the lowest few to pick a segment
+        int hash = (key == null) ? 0 : key.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & mask];
+    }
+
+    /**
+     * Hands each caller their own dependent future so that one of them completing or cancelling theirs can't affect
+     * the cached value that everybody else sees.
+     */
+    private static <V> CompletableFuture<V> follow(CompletableFuture<V> cached)
+    {
+        return cached.thenApply(value -> value);
+    }
+
+    /**
+     * A cached future and when we loaded it. The AtomicBoolean part is the "refresh in progress" flag so that only one
+     * hit kicks off a reload, no matter how many arrive once the entry gets old.
+     */
+    @SuppressWarnings("serial")
+    private static class Cached<V> extends AtomicBoolean
+    {
+        private final CompletableFuture<V> value;
+        private final long loadedAt;
+
+        private Cached(CompletableFuture<V> value, long loadedAt)
+        {
+            this.value = value;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    /**
+     * One slice of the cache: an access-ordered map that evicts its least recently used entry once it's over
+     * capacity. Callers must hold the segment's monitor while touching it.
+     */
+    @SuppressWarnings("serial")
+    private static class Segment<K, V> extends LinkedHashMap<K, Cached<V>>
+    {
+        private final int capacity;
+        private final LongAdder evictions;
+
+        private Segment(int capacity, LongAdder evictions)
+        {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+            this.evictions = evictions;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, Cached<V>> eldest)
+        {
+            if (size() <= capacity)
+                return false;
+
+            evictions.increment();
+            return true;
+        }
+    }
+}
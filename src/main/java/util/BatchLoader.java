@@ -0,0 +1,182 @@
+package util;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Gathers up individual key lookups that arrive close together and sends them off as a single bulk load, then hands
+ * each caller back their piece of the result. Think of it as trading a tiny bit of latency (at most one window) for
+ * turning N round trips into one.
+ * <p>
+ * A batch goes out as soon as it's full or once the window since its first key has elapsed, whichever comes first.
+ * Asking for the same key twice in one batch only loads it once.
+ * @param <K> The type of key being loaded (e.g. an id)
+ * @param <V> The type of value being loaded
+ */
+public class BatchLoader<K, V>
+{
+    /** The system property that sets the default batching window in milliseconds */
+    public static final String WINDOW_PROPERTY = "batch.window.millis";
+
+    /** The system property that sets the default maximum number of keys per batch */
+    public static final String MAX_SIZE_PROPERTY = "batch.max.size";
+
+    // Fires the flush for batches that don't fill up before their window is over
+    private static final ScheduledExecutorService TIMER = ExecutorStrategy.timer("batch-timer-");
+
+    private final Function<Collection<K>, CompletableFuture<Map<K, V>>> bulkLoad;
+    private final Function<K, ? extends Throwable> missing;
+    private final long windowNanos;
+    private final int maxSize;
+    private final LongAdder loads;
+    private final LongAdder batches;
+
+    // The batch that's currently filling up (null when there isn't one). Guarded by "this".
+    private Map<K, CompletableFuture<V>> pending;
+
+    /**
+     * Creates a loader whose window and batch size come from the "batch.window.millis" (default 2) and
+     * "batch.max.size" (default 100) system properties.
+     * @param bulkLoad Loads a whole batch of keys at once; keys that aren't in the resulting map are missing
+     * @param missing Builds the error for a key that the bulk load didn't find
+     */
+    public BatchLoader(Function<Collection<K>, CompletableFuture<Map<K, V>>> bulkLoad,
+                       Function<K, ? extends Throwable> missing)
+    {
+        this(bulkLoad, missing, Duration.ofMillis(Long.getLong(WINDOW_PROPERTY, 2)),
+            Integer.getInteger(MAX_SIZE_PROPERTY, 100));
+    }
+
+    /**
+     * @param bulkLoad Loads a whole batch of keys at once; keys that aren't in the resulting map are missing
+     * @param missing Builds the error for a key that the bulk load didn't find
+     * @param window How long a batch waits for more keys after its first one arrives
+     * @param maxSize The most keys we'll put in one batch; a full batch goes out right away
+     */
+    public BatchLoader(Function<Collection<K>, CompletableFuture<Map<K, V>>> bulkLoad,
+                       Function<K, ? extends Throwable> missing,
+                       Duration window,
+                       int maxSize)
+    {
+        if (maxSize < 1)
+            throw new IllegalArgumentException("maxSize must be at least 1 but was " + maxSize);
+
+        this.bulkLoad = bulkLoad;
+        this.missing = missing;
+        this.windowNanos = window.toNanos();
+        this.maxSize = maxSize;
+        this.loads = new LongAdder();
+        this.batches = new LongAdder();
+    }
+
+    /**
+     * Adds the key to the current batch (starting a new one if need be).
+     * @param key The key to load
+     * @return A future that completes w/ the key's value once its batch has been loaded
+     */
+    public CompletableFuture<V> load(K key)
+    {
+        loads.increment();
+
+        CompletableFuture<V> future;
+        Map<K, CompletableFuture<V>> started = null;
+        Map<K, CompletableFuture<V>> full = null;
+        synchronized (this)
+        {
+            if (pending == null)
+            {
+                pending = new LinkedHashMap<>();
+                started = pending;
+            }
+
+            future = pending.computeIfAbsent(key, k -> new CompletableFuture<>());
+            if (pending.size() >= maxSize)
+            {
+                full = pending;
+                pending = null;
+            }
+        }
+
+        if (full != null)
+        {
+            dispatch(full);
+        }
+        else if (started != null)
+        {
+            Map<K, CompletableFuture<V>> batch = started;
+            TIMER.schedule(() -> flush(batch), windowNanos, TimeUnit.NANOSECONDS);
+        }
+        return future.thenApply(value -> value);
+    }
+
+    /**
+     * Summarizes how many keys were asked for and how many bulk loads it took to serve them.
+     * @return The current counter values by name
+     */
+    public Map<String, Long> stats()
+    {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("loads", loads.sum());
+        stats.put("batches", batches.sum());
+        return stats;
+    }
+
+    /**
+     * Sends off the given batch once its window is up, unless it already went out because it filled up.
+     * @param batch The batch whose window just ended
+     */
+    private void flush(Map<K, CompletableFuture<V>> batch)
+    {
+        synchronized (this)
+        {
+            if (pending != batch)
+                return;
+
+            pending = null;
+        }
+        dispatch(batch);
+    }
+
+    /**
+     * Runs the bulk load for a (no longer pending) batch and fans its results back out to every caller.
+     * @param batch The keys to load and the futures waiting on each of them
+     */
+    private void dispatch(Map<K, CompletableFuture<V>> batch)
+    {
+        batches.increment();
+
+        CompletableFuture<Map<K, V>> results;
+        try
+        {
+            results = bulkLoad.apply(Collections.unmodifiableSet(batch.keySet()));
+        }
+        catch (Throwable t)
+        {
+            results = Futures.error(t);
+        }
+
+        results.whenComplete((found, error) -> batch.forEach((key, future) -> {
+            V value = (error == null) ? found.get(key) : null;
+            if (error != null)
+            {
+                future.completeExceptionally(error);
+            }
+            else if (value == null)
+            {
+                future.completeExceptionally(missing.apply(key));
+            }
+            else
+            {
+                future.complete(value);
+            }
+        }));
+    }
+}
@@ -0,0 +1,129 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * The machinery behind <code>Futures.mapAsync()</code>. It maps each input to a future but never has more than a fixed
+ * number of those futures outstanding at once; as soon as one finishes, the next input is started in its place.
+ * <p>
+ * Work that completes immediately would normally start the next item from inside the previous one's callback, which
+ * blows the stack after a few thousand items. To avoid that, only one thread at a time runs the launch loop and any
+ * other completions just bump a counter that tells the loop to go around again.
+ */
+class BoundedFanOut<I, O>
+{
+    private final Object[] inputs;
+    private final Object[] results;
+    private final Function<I, CompletableFuture<O>> work;
+    private final boolean failFast;
+    private final CompletableFuture<List<O>> result;
+
+    private final AtomicInteger nextIndex;
+    private final AtomicInteger remaining;
+    private final AtomicInteger pendingLaunches;
+    private final AtomicReference<Throwable> firstError;
+
+    BoundedFanOut(Collection<I> inputs, Function<I, CompletableFuture<O>> work, boolean failFast)
+    {
+        this.inputs = inputs.toArray();
+        this.results = new Object[this.inputs.length];
+        this.work = work;
+        this.failFast = failFast;
+        this.result = new CompletableFuture<>();
+
+        this.nextIndex = new AtomicInteger();
+        this.remaining = new AtomicInteger(this.inputs.length);
+        this.pendingLaunches = new AtomicInteger();
+        this.firstError = new AtomicReference<>();
+    }
+
+    /**
+     * Starts the first batch of work.
+     * @param maxInFlight The most futures we'll ever have outstanding at once
+     * @return A future that completes w/ all of the results (in input order) once everything is done
+     */
+    CompletableFuture<List<O>> start(int maxInFlight)
+    {
+        launch(Math.min(maxInFlight, inputs.length));
+        return result;
+    }
+
+    /**
+     * Asks for the given number of items to be started. If some other thread is already running the launch loop,
+     * it'll pick these up for us.
+     */
+    private void launch(int count)
+    {
+        if (pendingLaunches.getAndAdd(count) != 0)
+            return;
+
+        int launches = count;
+        do
+        {
+            for (int i = 0; i < launches; i++)
+            {
+                launchNext();
+            }
+        }
+        while ((launches = pendingLaunches.addAndGet(-launches)) != 0);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void launchNext()
+    {
+        int index = nextIndex.getAndIncrement();
+        if (index >= inputs.length || (failFast && result.isDone()))
+            return;
+
+        CompletableFuture<O> future;
+        try
+        {
+            future = work.apply((I)inputs[index]);
+        }
+        catch (Throwable t)
+        {
+            future = Futures.error(t);
+        }
+
+        future.whenComplete((value, error) -> {
+            if (error == null)
+            {
+                results[index] = value;
+            }
+            else if (firstError.compareAndSet(null, error) && failFast)
+            {
+                result.completeExceptionally(error);
+            }
+
+            if (remaining.decrementAndGet() == 0)
+            {
+                finish();
+            }
+            else
+            {
+                launch(1);
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private void finish()
+    {
+        Throwable error = firstError.get();
+        if (error != null)
+        {
+            result.completeExceptionally(error);
+        }
+        else
+        {
+            result.complete((List<O>)new ArrayList<>(Arrays.asList(results)));
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package util;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Caps how many calls a service can have in flight at once, so that a flood of one kind of request (say, order
+ * writes) queues up behind its own limit rather than soaking up the threads and datastore capacity that everything
+ * else needs. Calls past the limit are turned away immediately w/ a RejectedExecutionException (a 503 from the API)
+ * instead of waiting in line and making everybody slower.
+ * <p>
+ * There's no right limit to hard-code; it depends on the machine, the executor, and what the calls are doing at the
+ * moment. So the limit finds itself the way TCP Vegas finds a congestion window. Every so often we compare the
+ * average latency of recent calls to the best we've seen (our "no load" latency). The gap tells us roughly how many
+ * calls are queued up rather than doing work: if it's small, there's room to let in more, and if it's big, we're just
+ * building a queue, so we let in fewer. A call that times out is a sure sign of overload, so that cuts the limit
+ * multiplicatively (the "MD" of AIMD) rather than a step at a time.
+ * <p>
+ * Until we've seen our first queue build up, we're in "slow start" like TCP is: the limit doubles every window that
+ * we use it, rather than creeping up a step at a time, so a burst right after startup isn't turned away while we're
+ * still learning what the service can take.
+ * <p>
+ * Every call has to be on the clock. A spot is only given back once the call's future completes, so one that hangs
+ * forever would hold its spot forever, and enough of those would shut the service out for good. Callers w/o a
+ * deadline of their own get the "bulkhead.call.max.millis" timeout instead.
+ */
+public class Bulkhead
+{
+    /** The system property that sets the limit each bulkhead starts out w/ (default a tenth of the max limit) */
+    public static final String INITIAL_LIMIT_PROPERTY = "bulkhead.limit.initial";
+
+    /** The system property that sets the highest limit any bulkhead can grow to (default 1000) */
+    public static final String MAX_LIMIT_PROPERTY = "bulkhead.limit.max";
+
+    /** The system property that sets how long (in ms) a call w/o a deadline may hold its spot (default 10s) */
+    public static final String MAX_CALL_PROPERTY = "bulkhead.call.max.millis";
+
+    // How often we adjust the limit, and the fewest calls we'll adjust it based on
+    private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int MIN_SAMPLES = 10;
+
+    // Our best latency creeps up this much per window, so that if the "no load" latency really does go up (or the
+    // best was a fluke) we eventually stop comparing everything to it
+    private static final double BASELINE_DRIFT = 1.001;
+
+    // How much a timeout cuts the limit
+    private static final double BACKOFF = 0.9;
+
+    private final String name;
+    private final int minLimit;
+    private final int maxLimit;
+    private final Duration maxCall;
+    private volatile int limit;
+    private final AtomicInteger inFlight;
+
+    private final LongAdder accepted;
+    private final LongAdder rejected;
+    private final LongAdder timeouts;
+
+    // The current window's samples
+    private final AtomicLong windowEnd;
+    private final LongAdder windowSamples;
+    private final LongAdder windowNanos;
+    private final AtomicInteger windowPeak;
+    private final AtomicBoolean windowTimedOut;
+
+    // Only touched while holding this bulkhead's monitor (see adjust())
+    private double baselineNanos;
+    private boolean slowStart;
+
+    /**
+     * Creates a bulkhead whose limits come from the "bulkhead.limit.initial" (default a tenth of the max) and
+     * "bulkhead.limit.max" (default 1000) system properties, and whose calls w/o a deadline get the
+     * "bulkhead.call.max.millis" (default 10s) timeout.
+     * @param name What to call this bulkhead in errors
+     */
+    public Bulkhead(String name)
+    {
+        this(name, Integer.getInteger(MAX_LIMIT_PROPERTY, 1000));
+    }
+
+    private Bulkhead(String name, int maxLimit)
+    {
+        this(name, Integer.getInteger(INITIAL_LIMIT_PROPERTY, maxLimit / 10), 1, maxLimit,
+            Duration.ofMillis(Long.getLong(MAX_CALL_PROPERTY, 10_000)));
+    }
+
+    /**
+     * @param name What to call this bulkhead in errors
+     * @param initialLimit How many concurrent calls to allow until we've measured some. Slow start takes it from
+     *                     there, so this only has to be big enough to get through a burst at startup.
+     * @param minLimit The limit never drops below this, so some calls always get through to measure recovery
+     * @param maxLimit The limit never grows past this
+     * @param maxCall The longest a call w/o a deadline of its own may hold its spot before it fails w/ a
+     *                TimeoutException
+     */
+    public Bulkhead(String name, int initialLimit, int minLimit, int maxLimit, Duration maxCall)
+    {
+        if (minLimit < 1 || maxLimit < minLimit)
+            throw new IllegalArgumentException("Invalid bulkhead limits: " + minLimit + " to " + maxLimit);
+
+        this.name = name;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        this.inFlight = new AtomicInteger();
+        this.accepted = new LongAdder();
+        this.rejected = new LongAdder();
+        this.timeouts = new LongAdder();
+        this.windowEnd = new AtomicLong(System.nanoTime() + WINDOW_NANOS);
+        this.windowSamples = new LongAdder();
+        this.windowNanos = new LongAdder();
+        this.windowPeak = new AtomicInteger();
+        this.windowTimedOut = new AtomicBoolean();
+        this.maxCall = maxCall;
+        this.baselineNanos = Double.MAX_VALUE;
+        this.slowStart = true;
+    }
+
+    /**
+     * Runs the call if there's room under the limit, holding its spot until the call's future completes or the
+     * deadline passes, whichever comes first. Like <code>Deadline.call()</code>, the call isn't even started if the
+     * deadline has already passed.
+     * @param deadline When the caller needs the call done by (<code>Deadline.NONE</code> gets this bulkhead's max
+     *                 call time instead)
+     * @param work Starts the call
+     * @param <T> The type of value the call resolves to
+     * @return The call's future, or one that has already failed w/ a RejectedExecutionException if we're full
+     */
+    public <T> CompletableFuture<T> call(Deadline deadline, Supplier<CompletableFuture<T>> work)
+    {
+        Deadline bounded = (deadline == Deadline.NONE) ? Deadline.after(maxCall) : deadline;
+
+        int current = inFlight.incrementAndGet();
+        if (current > limit)
+        {
+            inFlight.decrementAndGet();
+            rejected.increment();
+
+            // No cause on purpose; the API reports errors by their root cause and we want a 503, not a 500
+            return Futures.error(new RejectedExecutionException("The " + name + " bulkhead is full"));
+        }
+
+        accepted.increment();
+        windowPeak.accumulateAndGet(current, Math::max);
+        long started = System.nanoTime();
+
+        // Deadline.call() catches anything the work throws, and gives us back a future that's sure to complete
+        return bounded.call(work).whenComplete((value, error) -> {
+            inFlight.decrementAndGet();
+            sample(System.nanoTime() - started, error != null && Utils.unwrap(error) instanceof TimeoutException);
+        });
+    }
+
+    /**
+     * @return How many concurrent calls we're letting through at the moment
+     */
+    public int limit()
+    {
+        return limit;
+    }
+
+    /**
+     * Summarizes the current limit and how many calls we've let through vs. turned away.
+     * @return The bulkhead's stats
+     */
+    public Map<String, Long> stats()
+    {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("limit", (long)limit);
+        stats.put("inFlight", (long)inFlight.get());
+        stats.put("accepted", accepted.sum());
+        stats.put("rejected", rejected.sum());
+        stats.put("timeouts", timeouts.sum());
+        return stats;
+    }
+
+    /**
+     * Adds a finished call to the current window. Whichever thread notices that the window is over gets to close it
+     * and adjust the limit; everybody else just adds to the counters and moves on.
+     */
+    private void sample(long nanos, boolean timedOut)
+    {
+        if (timedOut)
+        {
+            timeouts.increment();
+            windowTimedOut.set(true);
+        }
+        else
+        {
+            windowSamples.increment();
+            windowNanos.add(nanos);
+        }
+
+        long end = windowEnd.get();
+        long now = System.nanoTime();
+        if (now - end < 0)
+            return;
+
+        // Keep collecting if the window was too quiet to tell us anything (unless something timed out)
+        if (windowSamples.sum() < MIN_SAMPLES && !windowTimedOut.get())
+            return;
+
+        if (windowEnd.compareAndSet(end, now + WINDOW_NANOS))
+            adjust();
+    }
+
+    /**
+     * Closes out the window and moves the limit based on what we saw in it. Only the thread that won the race to
+     * close the window gets here, so the lock is just there to hand the baseline from one closer to the next.
+     */
+    private synchronized void adjust()
+    {
+        long samples = windowSamples.sumThenReset();
+        long totalNanos = windowNanos.sumThenReset();
+        int peak = windowPeak.getAndSet(0);
+        int current = limit;
+
+        if (windowTimedOut.getAndSet(false))
+        {
+            slowStart = false;
+            limit = Math.max(minLimit, (int)(current * BACKOFF));
+            return;
+        }
+        if (samples == 0)
+            return;
+
+        long averageNanos = Math.max(1, totalNanos / samples);
+        baselineNanos = Math.min(averageNanos, baselineNanos * BASELINE_DRIFT);
+
+        // Roughly how many of our calls are waiting rather than working. Like Vegas, the thresholds (and the step)
+        // grow w/ the log of the limit so that big limits don't hunt back and forth on every bit of noise.
+        double queued = current * (1 - baselineNanos / averageNanos);
+        double scale = Math.max(1, Math.log10(current));
+        int step = (int)scale;
+
+        // Slow start ends for good the first time calls start queueing up (or time out, see above)
+        if (slowStart && queued > 3 * scale)
+            slowStart = false;
+
+        if (slowStart)
+        {
+            if (peak * 2 >= current)
+                limit = Math.min(maxLimit, current * 2);
+        }
+        else if (queued <= 3 * scale && peak * 2 >= current)
+        {
+            // Only grow if we were actually using the limit we've got; otherwise a quiet service would creep up to
+            // the max and the limit would protect nothing once the load came back.
+            limit = Math.min(maxLimit, current + step);
+        }
+        else if (queued >= 6 * scale)
+        {
+            limit = Math.max(minLimit, current - step);
+        }
+    }
+}
@@ -0,0 +1,387 @@
+package util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Stops calling something that's clearly broken. When a dependency is having a bad time, every call to it still ties
+ * up a thread until it fails, and all of those calls make it that much harder for the dependency to recover. Once
+ * enough recent calls have failed, the breaker "opens" and fails every call immediately w/o making it.
+ * <p>
+ * The breaker is always in one of three states:
+ * <ul>
+ *     <li>CLOSED - Calls go through, and we track whether the last N of them succeeded. Once the failure rate over
+ *     that sliding window crosses the threshold, we open.</li>
+ *     <li>OPEN - Calls fail right away w/ a RejectedExecutionException (a 503 from the API). After a cool-down, we go
+ *     half-open.</li>
+ *     <li>HALF_OPEN - A few probe calls go through to see if things are better; everybody else still fails fast. If
+ *     the probes all succeed, we close again w/ a clean window. If any of them fails, or they don't all come back
+ *     in time, we're back to OPEN.</li>
+ * </ul>
+ * Each stint in a state is its own immutable "phase" object (the state, when it started, and its window or probe
+ * counters), and moving to the next state is a single CAS from the phase we saw to a new one. Every call remembers
+ * the phase it was let through in, and its outcome only counts if that phase is still current. So a failure that
+ * straggles in after we've opened can't push the cool-down back, and a probe from an earlier half-open round can't
+ * close us.
+ * <p>
+ * The whole thing is lock-free: the phase is a single atomic, the window is a ring of atomic slots, and the probes
+ * are atomic counters, so an open breaker costs a couple of volatile reads per call.
+ * <p>
+ * Only errors that say something about the dependency count as failures. A missing record or a bad argument is the
+ * caller's problem (the dependency did its job just fine), and a call that was cancelled never finished, so none of
+ * those are counted either way.
+ */
+public class CircuitBreaker
+{
+    /** The system property that sets the failure rate (a percentage) that opens the breaker (default 50) */
+    public static final String FAILURE_PERCENT_PROPERTY = "breaker.failure.percent";
+
+    /** The system property that sets how many of the most recent calls the failure rate covers (default 100) */
+    public static final String WINDOW_PROPERTY = "breaker.window";
+
+    /** The system property that sets how long (in milliseconds) the breaker stays open before probing (default 5000) */
+    public static final String OPEN_MILLIS_PROPERTY = "breaker.open.millis";
+
+    /** The system property that sets how many probes must succeed in a row to close the breaker (default 3) */
+    public static final String PROBES_PROPERTY = "breaker.probes";
+
+    /** The system property that sets how long (in milliseconds) the probes get to come back (default 2000) */
+    public static final String PROBE_MILLIS_PROPERTY = "breaker.probe.millis";
+
+    /** The states a breaker can be in */
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    // Never trip on the first couple of failures after starting (or closing) just because there's nothing else yet
+    private static final int MIN_CALLS = 20;
+
+    private final String name;
+    private final int failurePercent;
+    private final int windowSize;
+    private final long openNanos;
+    private final int probes;
+    private final long probeNanos;
+
+    private final AtomicReference<Phase> phase;
+
+    private final LongAdder calls;
+    private final LongAdder failures;
+    private final LongAdder rejected;
+    private final LongAdder trips;
+
+    /**
+     * Creates a breaker configured by the "breaker.*" system properties: it opens at a 50% failure rate over the last
+     * 100 calls, stays open for 5 seconds, and then needs 3 good probes within 2 seconds to close.
+     * @param name What to call this breaker in errors
+     */
+    public CircuitBreaker(String name)
+    {
+        this(name,
+            Integer.getInteger(FAILURE_PERCENT_PROPERTY, 50),
+            Integer.getInteger(WINDOW_PROPERTY, 100),
+            TimeUnit.MILLISECONDS.toNanos(Long.getLong(OPEN_MILLIS_PROPERTY, 5_000)),
+            Integer.getInteger(PROBES_PROPERTY, 3),
+            TimeUnit.MILLISECONDS.toNanos(Long.getLong(PROBE_MILLIS_PROPERTY, 2_000)));
+    }
+
+    /**
+     * @param name What to call this breaker in errors
+     * @param failurePercent The failure rate over the window that opens the breaker
+     * @param windowSize How many of the most recent calls the failure rate covers
+     * @param openNanos How long the breaker stays open before letting probes through
+     * @param probes How many probes must succeed to close the breaker again
+     * @param probeNanos How long the probes get to come back before we give up on them and open again. Nothing else
+     *                   bounds them, and a probe that never finishes would otherwise leave us half-open for good.
+     */
+    public CircuitBreaker(String name, int failurePercent, int windowSize, long openNanos, int probes, long probeNanos)
+    {
+        if (failurePercent < 1 || failurePercent > 100 || windowSize < 1 || probes < 1)
+            throw new IllegalArgumentException("Invalid circuit breaker settings for " + name);
+
+        this.name = name;
+        this.failurePercent = failurePercent;
+        this.windowSize = windowSize;
+        this.openNanos = openNanos;
+        this.probes = probes;
+        this.probeNanos = probeNanos;
+        this.phase = new AtomicReference<>(Phase.closed(new Window(windowSize)));
+        this.calls = new LongAdder();
+        this.failures = new LongAdder();
+        this.rejected = new LongAdder();
+        this.trips = new LongAdder();
+    }
+
+    /**
+     * Makes the call if the breaker lets it through, and keeps track of how it turned out.
+     * @param work Starts the call
+     * @param <T> The type of value the call resolves to
+     * @return The call's future, or one that has already failed w/ a RejectedExecutionException if we're open
+     */
+    public <T> CompletableFuture<T> call(Supplier<CompletableFuture<T>> work)
+    {
+        Phase current = phase.get();
+        if (current.state == State.OPEN)
+        {
+            long now = System.nanoTime();
+            if (now - current.since < openNanos)
+                return reject();
+
+            // The cool-down is over. Whoever gets here first starts a fresh round of probes for everybody.
+            Phase probing = Phase.halfOpen(now, current.window);
+            current = phase.compareAndSet(current, probing) ? probing : phase.get();
+            if (current.state == State.OPEN)
+                return reject();
+        }
+
+        if (current.state == State.HALF_OPEN && !current.tryProbe(probes))
+        {
+            // The probes we did let through are taking too long, which is as good as a failure
+            if (System.nanoTime() - current.since >= probeNanos)
+                trip(current);
+
+            return reject();
+        }
+
+        calls.increment();
+        CompletableFuture<T> future;
+        try
+        {
+            future = work.get();
+        }
+        catch (Throwable t)
+        {
+            future = Futures.error(t);
+        }
+
+        Phase issuedIn = current;
+        return future.whenComplete((value, error) -> {
+            if (issuedIn.state == State.HALF_OPEN)
+                probed(issuedIn, error);
+            else
+                record(issuedIn, error);
+        });
+    }
+
+    /**
+     * @return Whether the breaker is letting calls through at the moment
+     */
+    public State state()
+    {
+        return phase.get().state;
+    }
+
+    /**
+     * Summarizes the breaker's state and how many calls it has made, seen fail, and turned away.
+     * @return The breaker's stats
+     */
+    public Map<String, Object> stats()
+    {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        Phase current = phase.get();
+        stats.put("state", current.state.name());
+        stats.put("failurePercent", current.window.failurePercent());
+        stats.put("calls", calls.sum());
+        stats.put("failures", failures.sum());
+        stats.put("rejected", rejected.sum());
+        stats.put("trips", trips.sum());
+        return stats;
+    }
+
+    private <T> CompletableFuture<T> reject()
+    {
+        rejected.increment();
+
+        // No cause on purpose; the API reports errors by their root cause and we want a 503, not a 500
+        return Futures.error(new RejectedExecutionException("The " + name + " circuit breaker is open"));
+    }
+
+    /**
+     * Adds a regular (closed state) call's outcome to its window, and opens the breaker if that tips the failure rate
+     * over the threshold. A call that finishes after we've already moved on doesn't count toward anything.
+     */
+    private void record(Phase issuedIn, Throwable error)
+    {
+        Outcome outcome = Outcome.of(error);
+        if (outcome == Outcome.IGNORED)
+            return;
+
+        if (outcome == Outcome.FAILURE)
+            failures.increment();
+        if (phase.get() != issuedIn)
+            return;
+
+        issuedIn.window.add(outcome == Outcome.FAILURE);
+        if (outcome == Outcome.FAILURE && issuedIn.window.isTripped(failurePercent))
+            trip(issuedIn);
+    }
+
+    /**
+     * Handles a probe's outcome: one failure and we're open again, but it takes every probe succeeding to close. Only
+     * probes from the current half-open round count; the round's counters live in its phase, so a straggler from an
+     * earlier round can only ever touch that round's.
+     */
+    private void probed(Phase issuedIn, Throwable error)
+    {
+        Outcome outcome = Outcome.of(error);
+        if (outcome == Outcome.IGNORED)
+        {
+            // It told us nothing, so let somebody else have a go
+            issuedIn.probesStarted.decrementAndGet();
+        }
+        else if (outcome == Outcome.FAILURE)
+        {
+            failures.increment();
+            trip(issuedIn);
+        }
+        else if (issuedIn.probesSucceeded.incrementAndGet() >= probes)
+        {
+            // Start over w/ a clean window so that the failures that opened us don't immediately do it again
+            phase.compareAndSet(issuedIn, Phase.closed(new Window(windowSize)));
+        }
+    }
+
+    /**
+     * Opens the breaker, as long as it's still in the phase we expect (somebody else may have beaten us to it). The
+     * open phase carries its own start time, so a trip that loses the race can't touch the cool-down.
+     */
+    private void trip(Phase from)
+    {
+        if (phase.compareAndSet(from, Phase.open(System.nanoTime(), from.window)))
+            trips.increment();
+    }
+
+    private enum Outcome
+    {
+        SUCCESS, FAILURE, IGNORED;
+
+        private static Outcome of(Throwable error)
+        {
+            if (error == null)
+                return SUCCESS;
+
+            Throwable root = Utils.unwrap(error);
+            if (root instanceof CancellationException)
+                return IGNORED;
+            if (root instanceof NoSuchElementException || root instanceof IllegalArgumentException)
+                return SUCCESS;
+
+            return FAILURE;
+        }
+    }
+
+    /**
+     * One stint in one of our states. Phases never change once they're published (apart from their counters), so
+     * swapping in a new one is how we change state, and comparing against one tells a call whether its phase is over.
+     */
+    private static class Phase
+    {
+        private final State state;
+        private final long since;
+
+        // The calls that count toward opening us. Open and half-open phases keep the window that tripped, for stats.
+        private final Window window;
+
+        // Only used while HALF_OPEN
+        private final AtomicInteger probesStarted;
+        private final AtomicInteger probesSucceeded;
+
+        private Phase(State state, long since, Window window)
+        {
+            this.state = state;
+            this.since = since;
+            this.window = window;
+            this.probesStarted = (state == State.HALF_OPEN) ? new AtomicInteger() : null;
+            this.probesSucceeded = (state == State.HALF_OPEN) ? new AtomicInteger() : null;
+        }
+
+        private static Phase closed(Window window)
+        {
+            return new Phase(State.CLOSED, System.nanoTime(), window);
+        }
+
+        private static Phase open(long now, Window window)
+        {
+            return new Phase(State.OPEN, now, window);
+        }
+
+        private static Phase halfOpen(long now, Window window)
+        {
+            return new Phase(State.HALF_OPEN, now, window);
+        }
+
+        /**
+         * Claims one of this round's probes, if there are any left.
+         */
+        private boolean tryProbe(int probes)
+        {
+            while (true)
+            {
+                int started = probesStarted.get();
+                if (started >= probes)
+                    return false;
+                if (probesStarted.compareAndSet(started, started + 1))
+                    return true;
+            }
+        }
+    }
+
+    /**
+     * The outcomes of the last N calls in a ring, plus a running count of the failures among them. A new window
+     * comes w/ each new closed phase, so a reset never races w/ calls that are still recording.
+     */
+    private static class Window
+    {
+        // Each slot is EMPTY until a call has landed in it
+        private static final int EMPTY = 0;
+        private static final int SUCCEEDED = 1;
+        private static final int FAILED = 2;
+
+        private final AtomicIntegerArray outcomes;
+        private final AtomicLong next;
+        private final AtomicInteger filled;
+        private final AtomicInteger failed;
+
+        private Window(int size)
+        {
+            outcomes = new AtomicIntegerArray(size);
+            next = new AtomicLong();
+            filled = new AtomicInteger();
+            failed = new AtomicInteger();
+        }
+
+        private void add(boolean failure)
+        {
+            int slot = (int)(next.getAndIncrement() % outcomes.length());
+            int previous = outcomes.getAndSet(slot, failure ? FAILED : SUCCEEDED);
+
+            if (previous == EMPTY)
+                filled.incrementAndGet();
+            if (failure && previous != FAILED)
+                failed.incrementAndGet();
+            else if (!failure && previous == FAILED)
+                failed.decrementAndGet();
+        }
+
+        private boolean isTripped(int failurePercent)
+        {
+            int count = filled.get();
+            return count >= Math.min(MIN_CALLS, outcomes.length()) && failed.get() * 100L >= failurePercent * count;
+        }
+
+        private long failurePercent()
+        {
+            int count = filled.get();
+            return (count == 0) ? 0 : failed.get() * 100L / count;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package util;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * The point in time by which a request has to be done. The API creates one per request and hands it to every service
+ * call the request makes, and they hand it along to whatever they call. Once it's passed, work started through
+ * <code>call()</code> or <code>guard()</code> that hasn't started yet is skipped rather than run for a caller who has
+ * already given up, and any future bound to the deadline fails w/ a TimeoutException (which the API turns into a 504).
+ * Work that's already running isn't cancelled (see <code>bound()</code>); we just stop waiting for it.
+ * <p>
+ * All of the timeouts share a single TimerWheel, so bounding a future costs about as much as adding to a queue rather
+ * than scheduling a task on a ScheduledExecutorService per future.
+ */
+public class Deadline
+{
+    /** The system property that sets the timer wheel's tick (i.e. how late a deadline may fire) in milliseconds */
+    public static final String TICK_PROPERTY = "deadline.tick.millis";
+
+    /** A deadline that never passes, for callers that don't have one */
+    public static final Deadline NONE = new Deadline(Long.MAX_VALUE);
+
+    private static final TimerWheel WHEEL = new TimerWheel("deadline-wheel",
+        Duration.ofMillis(Long.getLong(TICK_PROPERTY, 10)));
+
+    // Compared to System.nanoTime(), so it's only meaningful within this JVM
+    private final long deadlineNanos;
+
+    private Deadline(long deadlineNanos)
+    {
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    /**
+     * Creates a deadline that passes once the given amount of time has gone by.
+     * @param timeout How long from now until the deadline
+     * @return The deadline
+     */
+    public static Deadline after(Duration timeout)
+    {
+        return new Deadline(System.nanoTime() + timeout.toNanos());
+    }
+
+    /**
+     * @return How much time is left (zero or negative once the deadline has passed)
+     */
+    public long remainingNanos()
+    {
+        return (this == NONE) ? Long.MAX_VALUE : deadlineNanos - System.nanoTime();
+    }
+
+    /**
+     * @return Whether or not the deadline has passed
+     */
+    public boolean isExpired()
+    {
+        return remainingNanos() <= 0;
+    }
+
+    /**
+     * Creates the error that work fails w/ when it runs out of time. There's no cause on purpose: the API reports
+     * errors by their root cause, and this is the one that matters.
+     * @return The error
+     */
+    public TimeoutException exceeded()
+    {
+        return new TimeoutException("Deadline exceeded");
+    }
+
+    /**
+     * Gives you a future that completes just like the given one does, unless the deadline passes first, in which case
+     * it fails w/ a TimeoutException. The given future is left alone either way, since it may well be shared w/ other
+     * callers (e.g. a cached or batched lookup) that still want its result, or be a write that's already on its way
+     * into the log. Cancelling it wouldn't stop the work behind it anyway; a CompletableFuture can't interrupt
+     * whatever is going to complete it.
+     * <p>
+     * A timeout fails the bounded future from the default executor (see <code>Futures.defaultExecutor()</code>), not
+     * the timer wheel's thread, since whatever is chained onto it (rendering a 504, say) runs on whichever thread
+     * completes it, and the wheel only has the one.
+     * @param future The future to bound
+     * @param <T> The type of value the future resolves to
+     * @return A future that's guaranteed to complete by the deadline
+     */
+    public <T> CompletableFuture<T> bound(CompletableFuture<T> future)
+    {
+        if (this == NONE || future.isDone())
+            return future;
+
+        long remaining = remainingNanos();
+        if (remaining <= 0)
+            return Futures.error(exceeded());
+
+        CompletableFuture<T> bounded = new CompletableFuture<>();
+        TimerWheel.Timeout timeout = WHEEL.schedule(() -> expire(bounded), remaining, TimeUnit.NANOSECONDS);
+
+        future.whenComplete((value, error) -> {
+            timeout.cancel();
+            if (error != null)
+                bounded.completeExceptionally(error);
+            else
+                bounded.complete(value);
+        });
+        return bounded;
+    }
+
+    /**
+     * Fails a bounded future for running out of time, handing the completion (and everything chained onto it) off to
+     * the default executor. If that executor won't take it (e.g. it's shutting down), we do it right here instead.
+     */
+    private void expire(CompletableFuture<?> bounded)
+    {
+        try
+        {
+            Futures.defaultExecutor().execute(() -> bounded.completeExceptionally(exceeded()));
+        }
+        catch (RejectedExecutionException e)
+        {
+            bounded.completeExceptionally(exceeded());
+        }
+    }
+
+    /**
+     * Starts some async work (e.g. a datastore call) as long as the deadline hasn't already passed, and bounds the
+     * resulting future by the deadline. Once we're out of time the work isn't even started.
+     * @param work Starts the async work
+     * @param <T> The type of value the work resolves to
+     * @return A future that's guaranteed to complete by the deadline
+     */
+    public <T> CompletableFuture<T> call(Supplier<CompletableFuture<T>> work)
+    {
+        if (isExpired())
+            return Futures.error(exceeded());
+
+        try
+        {
+            return bound(work.get());
+        }
+        catch (Throwable t)
+        {
+            return Futures.error(t);
+        }
+    }
+
+    /**
+     * Wraps a unit of work so that it refuses to run once the deadline has passed. This is how work that's been sitting
+     * in a backed up executor's queue gets skipped when nobody's waiting for it anymore.
+     * @param work The work to guard
+     * @param <T> The type of value the work returns
+     * @return The guarded work
+     */
+    public <T> Supplier<T> guard(Supplier<T> work)
+    {
+        if (this == NONE)
+            return work;
+
+        return () -> {
+            if (isExpired())
+                throw new CompletionException(exceeded());
+
+            return work.get();
+        };
+    }
+}
@@ -0,0 +1,139 @@
+package util;
+
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The different kinds of threads that our services and <code>Futures</code> helpers can run their work on. Pick one
+ * w/ <code>-Dexecutor.strategy=virtual_threads</code> (or whichever) so you can compare them under the same load.
+ */
+public enum ExecutorStrategy
+{
+    /**
+     * Runs each stage right on the thread that triggered it; nothing is ever handed off.
+     */
+    CALLER
+    {
+        @Override
+        public Executor create()
+        {
+            return Runnable::run;
+        }
+    },
+
+    /**
+     * The shared <code>ForkJoinPool.commonPool()</code>, which is what CompletableFuture uses when you don't give it
+     * an executor. It's sized to the number of cores, so blocking work starves it quickly.
+     */
+    COMMON_POOL
+    {
+        @Override
+        public Executor create()
+        {
+            return ForkJoinPool.commonPool();
+        }
+    },
+
+    /**
+     * A dedicated, fixed-size pool of platform threads. Size it w/ <code>-Dexecutor.threads=N</code>.
+     */
+    FIXED_POOL
+    {
+        @Override
+        public Executor create()
+        {
+            int threads = Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors() * 4);
+            return boundedPool("executor-", threads);
+        }
+    },
+
+    /**
+     * A brand new virtual thread for every task, so blocking is cheap and there's no pool to starve. This needs to
+     * run on JDK 21 or newer (see the "jdk21" build profile), but we look it up reflectively so the code still builds
+     * and runs on Java 8 when you stick to the other strategies.
+     */
+    VIRTUAL_THREADS
+    {
+        @Override
+        public Executor create()
+        {
+            try
+            {
+                return (Executor)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            }
+            catch (ReflectiveOperationException e)
+            {
+                throw new UnsupportedOperationException(
+                    "Virtual threads require JDK 21+ but this is " + System.getProperty("java.version"), e);
+            }
+        }
+    };
+
+    /** The system property used to choose a strategy */
+    public static final String STRATEGY_PROPERTY = "executor.strategy";
+
+    /** The system property used to size the FIXED_POOL strategy */
+    public static final String THREADS_PROPERTY = "executor.threads";
+
+    /**
+     * Builds the executor that this strategy describes.
+     * @return The executor to run work on
+     */
+    public abstract Executor create();
+
+    /**
+     * Looks at the "executor.strategy" system property to figure out which strategy to use.
+     * @return The configured strategy or COMMON_POOL (CompletableFuture's own default) if none was specified
+     */
+    public static ExecutorStrategy fromSystemProperty()
+    {
+        String name = System.getProperty(STRATEGY_PROPERTY);
+        return Utils.hasValue(name)
+            ? valueOf(name.trim().toUpperCase(Locale.ROOT))
+            : COMMON_POOL;
+    }
+
+    /**
+     * Creates a dedicated pool w/ a fixed number of threads. Give each kind of blocking work its own pool so that it
+     * can only ever tie up its own threads and never starves the common pool or anybody else.
+     * @param name The prefix for each of the pool's thread names
+     * @param threads The maximum number of threads the pool may run
+     * @return The isolated pool
+     */
+    public static ExecutorService boundedPool(String name, int threads)
+    {
+        return Executors.newFixedThreadPool(threads, daemonThreads(name));
+    }
+
+    /**
+     * Creates a single daemon thread for running delayed work. Timer tasks should be quick and hand anything heavy
+     * off to a real executor, since they all share the one thread.
+     * @param name The timer thread's name prefix
+     * @return The timer
+     */
+    public static ScheduledExecutorService timer(String name)
+    {
+        return Executors.newSingleThreadScheduledExecutor(daemonThreads(name));
+    }
+
+    /**
+     * Creates daemon threads w/ recognizable names so a pool never keeps the JVM alive on its own.
+     * @param prefix The prefix for each thread's name (followed by a counter)
+     * @return The thread factory
+     */
+    private static ThreadFactory daemonThreads(String prefix)
+    {
+        AtomicInteger counter = new AtomicInteger();
+        return work -> {
+            Thread thread = new Thread(work, prefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -1,9 +1,13 @@
 package util;
 
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -13,6 +17,28 @@ import java.util.stream.Stream;
  */
 public class Futures
 {
+    // Where the "async" helpers run their work unless told otherwise. See ExecutorStrategy for the options.
+    private static volatile Executor defaultExecutor = ForkJoinPool.commonPool();
+
+    /**
+     * Changes the executor that the "async" helpers run their work on when you don't give them one. Each application
+     * should call this once at startup (e.g. w/ <code>ExecutorStrategy.fromSystemProperty().create()</code>).
+     * @param executor The executor to use from now on
+     */
+    public static void setDefaultExecutor(Executor executor)
+    {
+        defaultExecutor = (executor == null) ? ForkJoinPool.commonPool() : executor;
+    }
+
+    /**
+     * Retrieves the executor that the "async" helpers run their work on.
+     * @return The current default executor
+     */
+    public static Executor defaultExecutor()
+    {
+        return defaultExecutor;
+    }
+
     /**
      * A shorthand for creating an already-completed future
      * @param value The value to complete a future w/
@@ -41,6 +67,49 @@ public class Futures
         }
     }
 
+    /**
+     * Like <code>supply()</code> except that the work runs on the default executor rather than the calling thread.
+     * @param work The work to execute
+     * @return A future for the given unit of work
+     */
+    public static <T> CompletableFuture<T> supplyAsync(Supplier<T> work)
+    {
+        return supplyAsync(work, defaultExecutor);
+    }
+
+    /**
+     * Like <code>supply()</code> except that the work runs on the given executor rather than the calling thread. Even
+     * if the executor refuses the work outright, you get a failed future rather than an exception.
+     * @param work The work to execute
+     * @param executor The executor to run the work on
+     * @return A future for the given unit of work
+     */
+    public static <T> CompletableFuture<T> supplyAsync(Supplier<T> work, Executor executor)
+    {
+        try
+        {
+            return CompletableFuture.supplyAsync(work, executor);
+        }
+        catch (Throwable t)
+        {
+            return error(t);
+        }
+    }
+
+    /**
+     * Like <code>supplyAsync(work, executor)</code>, but on the clock. If the deadline passes while the work is still
+     * waiting for a thread, it's skipped, and the resulting future fails w/ a TimeoutException as soon as the deadline
+     * passes no matter what the work is up to.
+     * @param work The work to execute
+     * @param executor The executor to run the work on
+     * @param deadline When the caller needs the result by
+     * @return A future for the given unit of work
+     */
+    public static <T> CompletableFuture<T> supplyAsync(Supplier<T> work, Executor executor, Deadline deadline)
+    {
+        return deadline.bound(supplyAsync(deadline.guard(work), executor));
+    }
+
     /**
      * A shorthand for creating a future that has already been completed exceptionally.
      * @param t The error to propagate
@@ -62,6 +131,7 @@ public class Futures
      * @return A single future that resolves w/ the results of all input operations when they're done.
      */
     @SafeVarargs
+    @SuppressWarnings("varargs")
     public static <T> CompletableFuture<List<T>> all(CompletableFuture<T>... futures)
     {
         return all(Arrays.asList(futures));
@@ -70,22 +140,20 @@ public class Futures
     /**
      * The standard <code>CompletableFuture.allOf()</code> returns a future w/ a Void type so you can't do anything
      * with the resulting values from each input future. This "glue" lets you reassemble all of the inputs' results
-     * into a single future that contains all of the input results once they're all back.
+     * into a single future that contains all of the input results once they're all back. The resulting list is
+     * fixed-size (it's backed directly by the array the results were collected in), so copy it if you need to add to it.
      * @param futures All of the units of work you want to wait for
      * @param <T> The return type of each input future
      * @return A single future that resolves w/ the results of all input operations when they're done.
      */
     public static <T> CompletableFuture<List<T>> all(List<CompletableFuture<T>> futures)
     {
-        // Thank you Tomasz - http://www.nurkiewicz.com/2013/05/java-8-completablefuture-in-action.html
+        // Thank you Tomasz - http://www.nurkiewicz.com/2013/05/java-8-completablefuture-in-action.html for the original
+        // allOf() version. This one counts the inputs down itself so big fan-outs don't pay for a second pass.
         if (futures == null || futures.isEmpty())
             return CompletableFuture.completedFuture(Collections.emptyList());
 
-        CompletableFuture<Void> allDone = CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()]));
-        return allDone.thenApply(v -> futures
-            .stream()
-            .map(future -> future.join())
-            .collect(Collectors.toList()));
+        return new AllOf<T>(futures.size()).start(futures);
     }
 
     /**
@@ -97,13 +165,138 @@ public class Futures
      * @return A single future that resolves w/ the results of all input operations when they're done.
      */
     @SafeVarargs
+    @SuppressWarnings("varargs")
     public static <T> CompletableFuture<List<T>> allAsync(Supplier<T>... futures)
+    {
+        return allAsync(defaultExecutor, futures);
+    }
+
+    /**
+     * Same as <code>allAsync(Supplier...)</code> except that every unit of work runs on the given executor rather
+     * than the default one. Use this to keep blocking work on its own bounded pool.
+     * @param executor The executor to run each unit of work on
+     * @param futures All of the units of work you want to wait for
+     * @param <T> The return type of each unit of work
+     * @return A single future that resolves w/ the results of all input operations when they're done.
+     */
+    @SafeVarargs
+    @SuppressWarnings("varargs")
+    public static <T> CompletableFuture<List<T>> allAsync(Executor executor, Supplier<T>... futures)
     {
         return all(Stream.of(futures)
-            .map(CompletableFuture::supplyAsync)
+            .map(work -> supplyAsync(work, executor))
             .collect(Collectors.toList()));
     }
 
+    /**
+     * Same as <code>allAsync(executor, futures)</code>, but on the clock. Work that's still waiting for a thread when
+     * the deadline passes is skipped, and the resulting future fails w/ a TimeoutException as soon as it passes.
+     * @param executor The executor to run each unit of work on
+     * @param deadline When the caller needs every result by
+     * @param futures All of the units of work you want to wait for
+     * @param <T> The return type of each unit of work
+     * @return A single future that resolves w/ the results of all input operations when they're done.
+     */
+    @SafeVarargs
+    @SuppressWarnings("varargs")
+    public static <T> CompletableFuture<List<T>> allAsync(Executor executor, Deadline deadline, Supplier<T>... futures)
+    {
+        // One timeout for the whole group rather than one per unit of work
+        return deadline.bound(all(Stream.of(futures)
+            .map(work -> supplyAsync(deadline.guard(work), executor))
+            .collect(Collectors.toList())));
+    }
+
+    /**
+     * Maps every input to a future, but never has more than <code>maxInFlight</code> of those futures outstanding at
+     * once. As soon as one finishes the next input gets started, so a batch of 10,000 lookups trickles through at a
+     * steady rate rather than flooding the executor (and whatever's behind it) all at once. If anything fails, the
+     * rest of the inputs still run and the resulting future fails once they're done, just like <code>all()</code>.
+     * @param inputs The values to map (e.g. a bunch of ids)
+     * @param work Starts the async work for a single input
+     * @param maxInFlight The most futures we'll have outstanding at any one time
+     * @param <I> The type of each input
+     * @param <O> The type that each input's future resolves to
+     * @return A future that resolves w/ every result, in the same order as the inputs
+     */
+    public static <I, O> CompletableFuture<List<O>> mapAsync(
+        Collection<I> inputs,
+        Function<I, CompletableFuture<O>> work,
+        int maxInFlight)
+    {
+        return mapAsync(inputs, work, maxInFlight, false);
+    }
+
+    /**
+     * Same as <code>mapAsync(inputs, work, maxInFlight)</code>, but lets you bail out on the first failure. When
+     * <code>failFast</code> is true, the resulting future fails as soon as any input fails and no more inputs are
+     * started (those already in flight are left to finish on their own).
+     * @param inputs The values to map (e.g. a bunch of ids)
+     * @param work Starts the async work for a single input
+     * @param maxInFlight The most futures we'll have outstanding at any one time
+     * @param failFast Should we stop at the first failure rather than running everything?
+     * @param <I> The type of each input
+     * @param <O> The type that each input's future resolves to
+     * @return A future that resolves w/ every result, in the same order as the inputs
+     */
+    public static <I, O> CompletableFuture<List<O>> mapAsync(
+        Collection<I> inputs,
+        Function<I, CompletableFuture<O>> work,
+        int maxInFlight,
+        boolean failFast)
+    {
+        if (maxInFlight < 1)
+            return error(new IllegalArgumentException("maxInFlight must be at least 1, not " + maxInFlight));
+
+        if (inputs == null || inputs.isEmpty())
+            return of(Collections.emptyList());
+
+        return new BoundedFanOut<>(inputs, work, failFast).start(maxInFlight);
+    }
+
+    /**
+     * Same as <code>mapAsync(inputs, work, maxInFlight, failFast)</code>, but on the clock. Once the deadline passes,
+     * no more inputs are started (each one that's left fails w/ a TimeoutException instead), and the resulting future
+     * fails w/ a TimeoutException as soon as it passes rather than waiting on whatever is still in flight.
+     * @param inputs The values to map (e.g. a bunch of ids)
+     * @param work Starts the async work for a single input
+     * @param maxInFlight The most futures we'll have outstanding at any one time
+     * @param failFast Should we stop at the first failure rather than running everything?
+     * @param deadline When the caller needs every result by
+     * @param <I> The type of each input
+     * @param <O> The type that each input's future resolves to
+     * @return A future that resolves w/ every result, in the same order as the inputs
+     */
+    public static <I, O> CompletableFuture<List<O>> mapAsync(
+        Collection<I> inputs,
+        Function<I, CompletableFuture<O>> work,
+        int maxInFlight,
+        boolean failFast,
+        Deadline deadline)
+    {
+        // Each input only checks the clock before it starts; the one timeout is on the whole thing. Bounding every
+        // input separately would free up its slot at the deadline and let another start while it's still running.
+        return deadline.bound(mapAsync(inputs, input -> deadline.isExpired()
+            ? error(deadline.exceeded())
+            : work.apply(input), maxInFlight, failFast));
+    }
+
+    /**
+     * Hedges a call against the tail of its latency. Unlike <code>anyAsync()</code>, which races every copy of the
+     * work from the start, this sends one call and only sends a backup if that call is still going after the policy's
+     * delay (e.g. the p95 of recent calls). Whichever comes back first wins and the other one's result is discarded
+     * (it still runs to completion), so you trim the slowest few percent of calls for a few percent more load rather
+     * than twice as much.
+     * @param call Starts the call; it's invoked a second time for the backup, so each one should be its own call
+     * @param policy When to send the backup and how many backups we can afford (share one across similar calls)
+     * @param <T> The type of value the call resolves to
+     * @return A future that completes w/ whichever call comes back first, or fails once every call has failed
+     */
+    public static <T> CompletableFuture<T> hedge(Supplier<CompletableFuture<T>> call, HedgePolicy policy)
+    {
+        return new Hedge<>(call, policy).start();
+    }
+
     /**
      * A shorthand workaround for casting the result of <code>CompletableFuture.anyOf()</code> to the original type shared
      * by all of the input futures. This doesn't magically give any type safety that was lost by converting to Object
@@ -112,7 +305,7 @@ public class Futures
      * @return A future that completes when the first input future finishes.
      */
     @SafeVarargs
-    @SuppressWarnings("unchecked")
+    @SuppressWarnings({"unchecked", "varargs"})
     public static <T> CompletableFuture<T> any(CompletableFuture<T>... futures)
     {
         return CompletableFuture.anyOf(futures)
@@ -128,13 +321,55 @@ public class Futures
      * @return A single future that resolves w/ the results of all input operations when they're done.
      */
     @SafeVarargs
-    @SuppressWarnings("unchecked")
+    @SuppressWarnings("varargs")
     public static <T> CompletableFuture<T> anyAsync(Supplier<T>... futures)
+    {
+        return anyAsync(defaultExecutor, futures);
+    }
+
+    /**
+     * Same as <code>anyAsync(Supplier...)</code> except that every unit of work runs on the given executor rather
+     * than the default one.
+     * @param executor The executor to run each unit of work on
+     * @param futures The units of work you want to race against each other
+     * @param <T> The return type of each unit of work
+     * @return A future that completes when the first unit of work finishes.
+     */
+    @SafeVarargs
+    @SuppressWarnings({"unchecked", "varargs"})
+    public static <T> CompletableFuture<T> anyAsync(Executor executor, Supplier<T>... futures)
     {
         return CompletableFuture.anyOf(Stream.of(futures)
-            .map(CompletableFuture::supplyAsync)
+            .map(work -> supplyAsync(work, executor))
             .collect(Collectors.toList())
-            .toArray(new CompletableFuture[futures.length]))
+            .toArray(new CompletableFuture<?>[futures.length]))
             .thenApply(value -> (T)value);
     }
+
+    /**
+     * Same as <code>anyAsync(executor, futures)</code>, but on the clock. Work that's still waiting for a thread when
+     * the deadline passes is skipped, and if nothing has finished by then, the resulting future fails w/ a
+     * TimeoutException.
+     * @param executor The executor to run each unit of work on
+     * @param deadline When the caller needs a result by
+     * @param futures The units of work you want to race against each other
+     * @param <T> The return type of each unit of work
+     * @return A future that completes when the first unit of work finishes.
+     */
+    @SafeVarargs
+    public static <T> CompletableFuture<T> anyAsync(Executor executor, Deadline deadline, Supplier<T>... futures)
+    {
+        // Same as anyOf(), whichever finishes first (successfully or not) wins
+        CompletableFuture<T> first = new CompletableFuture<>();
+        for (Supplier<T> work : futures)
+        {
+            supplyAsync(deadline.guard(work), executor).whenComplete((value, error) -> {
+                if (error != null)
+                    first.completeExceptionally(error);
+                else
+                    first.complete(value);
+            });
+        }
+        return deadline.bound(first);
+    }
 }
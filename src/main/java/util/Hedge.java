@@ -0,0 +1,115 @@
+package util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * The machinery behind <code>Futures.hedge()</code>. It starts the primary call right away and sets a timer for the
+ * policy's delay. If the primary is still going when the timer fires (and the budget allows), a backup call goes
+ * out. Whichever comes back first w/ a value wins, and the other one's result is just thrown away when it shows up.
+ * There's no cancelling the loser: all we'd have is a future that depends on the real work (e.g. the one a circuit
+ * breaker hands back), and cancelling that stops neither the work nor its outcome counting against the breaker.
+ * <p>
+ * A failure only fails the whole thing once there's nothing left that could still succeed: if the primary fails
+ * while the backup is in flight (or vice versa), we wait for the other one. A primary that fails before the timer
+ * fires is reported right away; failing fast isn't the kind of slow that hedging is meant to fix.
+ */
+class Hedge<T>
+{
+    // Fires the backup calls. These delays are often well under a millisecond, which is too fine for the TimerWheel.
+    private static final ScheduledExecutorService TIMER = ExecutorStrategy.timer("hedge-timer-");
+
+    private final Supplier<CompletableFuture<T>> call;
+    private final HedgePolicy policy;
+    private final CompletableFuture<T> result;
+    private final AtomicInteger launched;
+    private final AtomicInteger failed;
+
+    private long startNanos;
+    private volatile CompletableFuture<T> primary;
+
+    Hedge(Supplier<CompletableFuture<T>> call, HedgePolicy policy)
+    {
+        this.call = call;
+        this.policy = policy;
+        this.result = new CompletableFuture<>();
+        this.launched = new AtomicInteger();
+        this.failed = new AtomicInteger();
+    }
+
+    /**
+     * Sends the primary call and arms the backup timer.
+     * @return A future that completes w/ the first value either call comes back w/
+     */
+    CompletableFuture<T> start()
+    {
+        policy.called();
+        startNanos = System.nanoTime();
+
+        launched.incrementAndGet();
+        CompletableFuture<T> first = launch();
+        primary = first;
+        if (!first.isDone())
+        {
+            ScheduledFuture<?> timer = TIMER.schedule(this::hedge, policy.delayNanos(), TimeUnit.NANOSECONDS);
+            result.whenComplete((value, error) -> timer.cancel(false));
+        }
+        first.whenComplete((value, error) -> done(first, value, error));
+        return result;
+    }
+
+    /**
+     * The primary is taking too long, so send the backup (if we're still waiting and it's in the budget).
+     */
+    private void hedge()
+    {
+        if (result.isDone() || !policy.tryHedge())
+            return;
+
+        launched.incrementAndGet();
+        CompletableFuture<T> second = launch();
+        second.whenComplete((value, error) -> done(second, value, error));
+    }
+
+    /**
+     * Starts one copy of the call. A call that blows up before it even returns a future counts as a failed call.
+     */
+    private CompletableFuture<T> launch()
+    {
+        try
+        {
+            return call.get();
+        }
+        catch (Throwable t)
+        {
+            return Futures.error(t);
+        }
+    }
+
+    private void done(CompletableFuture<T> source, T value, Throwable error)
+    {
+        if (error == null)
+        {
+            if (!result.complete(value))
+                return;
+
+            policy.record(System.nanoTime() - startNanos);
+            if (source != primary)
+                policy.hedgeWon();
+            return;
+        }
+
+        // Only report the failure once every call we've launched has failed
+        if (failed.incrementAndGet() < launched.get())
+            return;
+
+        Throwable failure = (error instanceof CompletionException) ? error : new CompletionException(error);
+        if (result.completeExceptionally(failure))
+            policy.record(System.nanoTime() - startNanos);
+    }
+}
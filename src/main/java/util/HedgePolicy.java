@@ -0,0 +1,197 @@
+package util;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides when <code>Futures.hedge()</code> should send a backup call, and keeps it from sending too many of them.
+ * <p>
+ * The idea (from "The Tail at Scale") is that most calls are quick and a few get stuck behind something slow. If we
+ * wait until a call has taken longer than, say, 95% of calls usually do before sending a second one, the second one
+ * usually wins and we only pay for about 5% more calls. The delay is either fixed or, by default, tracks the observed
+ * 95th percentile of our calls' latency, so it adapts as the load changes. Either way, a budget caps backups at a
+ * fraction of all calls so that a slow dependency never gets its load doubled right when it can least afford it.
+ */
+public class HedgePolicy
+{
+    /** The system property that fixes the hedge delay in microseconds (it adapts to the observed latency if unset) */
+    public static final String DELAY_PROPERTY = "hedge.delay.micros";
+
+    /** The system property that sets which latency percentile the adaptive delay tracks (default 95) */
+    public static final String PERCENTILE_PROPERTY = "hedge.percentile";
+
+    /** The system property that caps backups as a percentage of all calls (default 5) */
+    public static final String BUDGET_PROPERTY = "hedge.budget.percent";
+
+    // Scheduling a backup any sooner than this costs more than it could ever save
+    private static final long MIN_DELAY_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    // The adaptive delay is recalculated this often, once it has enough calls to go on
+    private static final long REFRESH_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int MIN_SAMPLES = 100;
+
+    // Lets a handful of backups through before there are enough calls for the percentage to mean anything
+    private static final int BUDGET_BURST = 10;
+
+    private final double percentile;
+    private final double budget;
+    private final boolean adaptive;
+    private volatile long delayNanos;
+
+    private final LongAdder calls;
+    private final LongAdder hedges;
+    private final LongAdder hedgeWins;
+
+    private final Recorder latency;
+    private final AtomicLong nextRefresh;
+
+    // Only touched by whichever thread is refreshing the delay (see refresh())
+    private Histogram interval;
+    private final Histogram window;
+
+    private HedgePolicy(Duration delay, double percentile, double budget, boolean adaptive)
+    {
+        this.delayNanos = Math.max(MIN_DELAY_NANOS, delay.toNanos());
+        this.percentile = percentile;
+        this.budget = budget;
+        this.adaptive = adaptive;
+        this.calls = new LongAdder();
+        this.hedges = new LongAdder();
+        this.hedgeWins = new LongAdder();
+        this.latency = new Recorder(2);
+        this.nextRefresh = new AtomicLong(System.nanoTime() + REFRESH_NANOS);
+        this.window = new Histogram(2);
+    }
+
+    /**
+     * Always sends the backup after the same delay.
+     * @param delay How long to wait on the first call before sending a backup
+     * @param budgetPercent The most backups we'll send, as a percentage of all calls
+     * @return The policy
+     */
+    public static HedgePolicy fixed(Duration delay, double budgetPercent)
+    {
+        return new HedgePolicy(delay, 0, budgetPercent / 100, false);
+    }
+
+    /**
+     * Sends the backup once a call has taken longer than the given percentile of recent calls. Until we've seen
+     * enough calls to know what that is, we go w/ the initial delay.
+     * @param percentile The latency percentile to wait for (e.g. 95)
+     * @param initialDelay The delay to use until we've measured some calls
+     * @param budgetPercent The most backups we'll send, as a percentage of all calls
+     * @return The policy
+     */
+    public static HedgePolicy adaptive(double percentile, Duration initialDelay, double budgetPercent)
+    {
+        return new HedgePolicy(initialDelay, percentile, budgetPercent / 100, true);
+    }
+
+    /**
+     * Builds a policy from the "hedge.delay.micros", "hedge.percentile", and "hedge.budget.percent" system
+     * properties. You get an adaptive p95 policy w/ a 5% budget unless you say otherwise.
+     * @return The policy
+     */
+    public static HedgePolicy fromSystemProperties()
+    {
+        double budget = Double.parseDouble(System.getProperty(BUDGET_PROPERTY, "5"));
+        String delay = System.getProperty(DELAY_PROPERTY);
+        if (Utils.hasValue(delay))
+            return fixed(Duration.ofNanos(TimeUnit.MICROSECONDS.toNanos(Long.parseLong(delay.trim()))), budget);
+
+        double percentile = Double.parseDouble(System.getProperty(PERCENTILE_PROPERTY, "95"));
+        return adaptive(percentile, Duration.ofMillis(1), budget);
+    }
+
+    /**
+     * @return How long the first call gets before we send a backup
+     */
+    public long delayNanos()
+    {
+        return delayNanos;
+    }
+
+    /**
+     * Summarizes how much hedging we've done and how often it paid off.
+     * @return The call, backup, and winning backup counts plus the current delay
+     */
+    public Map<String, Long> stats()
+    {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("calls", calls.sum());
+        stats.put("hedges", hedges.sum());
+        stats.put("hedgeWins", hedgeWins.sum());
+        stats.put("delayMicros", TimeUnit.NANOSECONDS.toMicros(delayNanos));
+        return stats;
+    }
+
+    /**
+     * Counts a brand new call.
+     */
+    void called()
+    {
+        calls.increment();
+    }
+
+    /**
+     * Asks whether there's room in the budget for another backup call, and counts it if so. This races w/ other
+     * callers a bit, so the budget can be overshot by a call or two, but never by more than that.
+     * @return True if the backup should go out
+     */
+    boolean tryHedge()
+    {
+        if (hedges.sum() >= calls.sum() * budget + BUDGET_BURST)
+            return false;
+
+        hedges.increment();
+        return true;
+    }
+
+    /**
+     * Counts a backup that came back before the call it was backing up.
+     */
+    void hedgeWon()
+    {
+        hedgeWins.increment();
+    }
+
+    /**
+     * Records how long a call took (from the caller's point of view) and, every so often, moves the adaptive delay
+     * to the latest percentile.
+     * @param nanos How long the call took
+     */
+    void record(long nanos)
+    {
+        if (!adaptive)
+            return;
+
+        latency.recordValue(Math.max(0, nanos));
+
+        long next = nextRefresh.get();
+        long now = System.nanoTime();
+        if (now - next >= 0 && nextRefresh.compareAndSet(next, now + REFRESH_NANOS))
+            refresh();
+    }
+
+    /**
+     * Only the thread that wins the race on nextRefresh gets here, but a slow refresh could still overlap the next
+     * one, hence the lock. Nobody else ever waits on it.
+     */
+    private synchronized void refresh()
+    {
+        interval = latency.getIntervalHistogram(interval);
+        window.add(interval);
+        if (window.getTotalCount() < MIN_SAMPLES)
+            return;
+
+        delayNanos = Math.max(MIN_DELAY_NANOS, window.getValueAtPercentile(percentile));
+        window.reset();
+    }
+}
@@ -0,0 +1,278 @@
+package util;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Latency histograms for the named stages of our future pipelines, so that you can see which hop of something like
+ * "supply, applySalesTax, save" is slow under load without attaching a profiler.
+ * <p>
+ * Every stage tracks up to three things: how long the whole stage took ("latency"), how long its work sat in the
+ * executor's queue before a thread picked it up ("queued"), and how long it actually ran once it got a thread ("run").
+ * A big "queued" w/ a small "run" means the pool is starved; the other way around means the work itself is slow. We
+ * also count which threads the stage ran on, so you can see if it's hopping where you don't expect it to.
+ * <p>
+ * Recording is wait-free (HdrHistogram's Recorder), so instrumenting a hot stage only costs a couple of
+ * <code>System.nanoTime()</code> calls. Stages are shared by name across the whole process.
+ */
+public class StageMetrics
+{
+    // Virtual threads (and anything else w/o a name) all get lumped together rather than listed one by one
+    private static final String UNNAMED_THREAD = "unnamed";
+
+    // Past this many distinct threads per stage, the rest are counted together so the metrics can't grow forever
+    private static final int MAX_THREADS = 64;
+    private static final String OTHER_THREADS = "other";
+
+    private static final ConcurrentMap<String, Stage> STAGES = new ConcurrentHashMap<>();
+
+    /**
+     * Looks up the stage w/ the given name, creating it the first time it's asked for. Hang onto the result in a
+     * constant rather than looking it up on every call.
+     * @param name The stage's name (e.g. "order.place.salesTax")
+     * @return The stage
+     */
+    public static Stage stage(String name)
+    {
+        return STAGES.computeIfAbsent(name, Stage::new);
+    }
+
+    /**
+     * Summarizes every stage for the metrics route: a count and percentiles (in microseconds) for each of the
+     * stage's histograms, plus how many times it ran on each thread.
+     * @return The stats for each stage, sorted by name
+     */
+    public static Map<String, Object> stats()
+    {
+        Map<String, Object> stats = new TreeMap<>();
+        STAGES.forEach((name, stage) -> stats.put(name, stage.stats()));
+        return stats;
+    }
+
+    /**
+     * A single named stage of a pipeline. Wrap the work that makes up the stage w/ one of these methods and it gets
+     * timed every time it runs.
+     */
+    public static class Stage
+    {
+        private final String name;
+        private final Timing latency;
+        private final Timing queued;
+        private final Timing run;
+        private final ConcurrentMap<String, LongAdder> threads;
+
+        private Stage(String name)
+        {
+            this.name = name;
+            this.latency = new Timing();
+            this.queued = new Timing();
+            this.run = new Timing();
+            this.threads = new ConcurrentHashMap<>();
+        }
+
+        /**
+         * @return The name of this stage
+         */
+        public String name()
+        {
+            return name;
+        }
+
+        /**
+         * Like <code>Futures.supplyAsync()</code> except that the work's time in the executor's queue and its run
+         * time are both recorded, along w/ the thread it ran on.
+         * @param work The work to execute
+         * @param executor The executor to run the work on
+         * @return A future for the given unit of work
+         */
+        public <T> CompletableFuture<T> supplyAsync(Supplier<T> work, Executor executor)
+        {
+            return supplyAsync(work, executor, Deadline.NONE);
+        }
+
+        /**
+         * Like <code>Futures.supplyAsync(work, executor, deadline)</code> except that the work's time in the
+         * executor's queue and its run time are both recorded, along w/ the thread it ran on. Work that's skipped
+         * because it missed its deadline still counts, since the time it spent waiting is usually why.
+         * @param work The work to execute
+         * @param executor The executor to run the work on
+         * @param deadline When the caller needs the result by
+         * @return A future for the given unit of work
+         */
+        public <T> CompletableFuture<T> supplyAsync(Supplier<T> work, Executor executor, Deadline deadline)
+        {
+            Supplier<T> guarded = deadline.guard(work);
+            long submitted = System.nanoTime();
+            return deadline.bound(Futures.supplyAsync(() -> {
+                long started = System.nanoTime();
+                queued.record(started - submitted);
+                try
+                {
+                    return guarded.get();
+                }
+                finally
+                {
+                    long finished = System.nanoTime();
+                    run.record(finished - started);
+                    latency.record(finished - submitted);
+                    ranOn(Thread.currentThread());
+                }
+            }, executor));
+        }
+
+        /**
+         * Wraps a function that runs as a synchronous stage (e.g. w/ <code>thenApply()</code>) so that its run time
+         * and thread get recorded each time it's called.
+         * @param work The stage's function
+         * @return The timed version of the function
+         */
+        public <I, O> Function<I, O> timed(Function<I, O> work)
+        {
+            return input -> {
+                long started = System.nanoTime();
+                try
+                {
+                    return work.apply(input);
+                }
+                finally
+                {
+                    long elapsed = System.nanoTime() - started;
+                    run.record(elapsed);
+                    latency.record(elapsed);
+                    ranOn(Thread.currentThread());
+                }
+            };
+        }
+
+        /**
+         * Times a stage that's asynchronous in its own right (a lookup, a save, a whole sub-pipeline...) from the
+         * moment it's started until its future completes, successfully or not. The thread that's recorded is the
+         * one that completed it.
+         * @param work Starts the stage
+         * @return The stage's future
+         */
+        public <T> CompletableFuture<T> time(Supplier<CompletableFuture<T>> work)
+        {
+            long started = System.nanoTime();
+            CompletableFuture<T> future;
+            try
+            {
+                future = work.get();
+            }
+            catch (Throwable t)
+            {
+                future = Futures.error(t);
+            }
+
+            // Already-done futures (e.g. cache hits) run this inline, which is just what we want
+            return future.whenComplete((value, error) -> {
+                latency.record(System.nanoTime() - started);
+                ranOn(Thread.currentThread());
+            });
+        }
+
+        /**
+         * Counts one more run on the given thread.
+         */
+        private void ranOn(Thread thread)
+        {
+            String name = thread.getName();
+            if (!Utils.hasValue(name))
+                name = UNNAMED_THREAD;
+
+            LongAdder count = threads.get(name);
+            if (count == null)
+            {
+                count = (threads.size() < MAX_THREADS)
+                    ? threads.computeIfAbsent(name, key -> new LongAdder())
+                    : threads.computeIfAbsent(OTHER_THREADS, key -> new LongAdder());
+            }
+            count.increment();
+        }
+
+        /**
+         * @return This stage's histograms (only the ones it has recorded anything into) and its thread counts
+         */
+        private Map<String, Object> stats()
+        {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("latency", latency.stats());
+            if (queued.count() > 0)
+                stats.put("queued", queued.stats());
+            if (run.count() > 0)
+                stats.put("run", run.stats());
+            stats.put("threads", threadStats());
+            return stats;
+        }
+
+        private Map<String, Long> threadStats()
+        {
+            Map<String, Long> stats = new TreeMap<>();
+            threads.forEach((thread, count) -> stats.put(thread, count.sum()));
+            return stats;
+        }
+    }
+
+    /**
+     * One histogram's worth of durations. Writers record into a Recorder, which never blocks them. Whenever we're
+     * asked for stats, whatever was recorded since last time gets folded into a running total, which is what we
+     * report (so the numbers cover everything since startup).
+     */
+    private static class Timing
+    {
+        // 3 significant digits, and the histogram grows to fit whatever durations we throw at it
+        private final Recorder recorder = new Recorder(3);
+
+        // Only touched while holding this Timing's monitor
+        private final Histogram total = new Histogram(3);
+        private Histogram interval;
+
+        private void record(long nanos)
+        {
+            recorder.recordValue(Math.max(0, nanos));
+        }
+
+        private synchronized long count()
+        {
+            fold();
+            return total.getTotalCount();
+        }
+
+        private synchronized Map<String, Object> stats()
+        {
+            fold();
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("count", total.getTotalCount());
+            stats.put("meanMicros", micros(Math.round(total.getMean())));
+            stats.put("p50Micros", micros(total.getValueAtPercentile(50)));
+            stats.put("p90Micros", micros(total.getValueAtPercentile(90)));
+            stats.put("p99Micros", micros(total.getValueAtPercentile(99)));
+            stats.put("p999Micros", micros(total.getValueAtPercentile(99.9)));
+            stats.put("maxMicros", micros(total.getMaxValue()));
+            return stats;
+        }
+
+        private void fold()
+        {
+            interval = recorder.getIntervalHistogram(interval);
+            total.add(interval);
+        }
+
+        private static long micros(long nanos)
+        {
+            return TimeUnit.NANOSECONDS.toMicros(nanos);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package util;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timer wheel for huge numbers of timeouts that almost never fire. Every request gets a deadline, and nearly
+ * every one of them finishes in time, so we want scheduling and cancelling a timeout to be about as cheap as adding
+ * to a queue and flipping a flag. A ScheduledExecutorService keeps its tasks in a heap that every schedule/cancel has
+ * to lock and rebalance, which gets expensive once you're doing it a few times per request.
+ * <p>
+ * Time is chopped into ticks and the wheel has one bucket per tick, wrapping around. New timeouts go on a lock-free
+ * queue; once per tick, a single thread moves them into the bucket for the tick they're due in, then fires (or
+ * discards, if they were cancelled) everything in the current bucket. Timeouts are never early, but they can fire up
+ * to one tick late, so keep the tick small compared to the timeouts you use it for.
+ * <p>
+ * Tasks run on the wheel's thread, so they should be quick (e.g. completing a future) and hand anything heavy off to
+ * a real executor.
+ */
+public class TimerWheel
+{
+    private static final int WHEEL_SIZE = 512;
+    private static final int MASK = WHEEL_SIZE - 1;
+
+    private final long tickNanos;
+    private final long startNanos;
+    private final Queue<Timeout> pending;
+    private final List<List<Timeout>> buckets;
+
+    // The last tick we've processed. Only touched by the wheel's thread.
+    private long tick;
+
+    /**
+     * Creates a wheel and starts its (daemon) thread.
+     * @param name The name of the wheel's thread
+     * @param tick How much time each bucket covers
+     */
+    public TimerWheel(String name, Duration tick)
+    {
+        this.tickNanos = Math.max(1, tick.toNanos());
+        this.startNanos = System.nanoTime();
+        this.pending = new ConcurrentLinkedQueue<>();
+        this.buckets = new ArrayList<>(WHEEL_SIZE);
+        for (int i = 0; i < WHEEL_SIZE; i++)
+            buckets.add(new ArrayList<>());
+
+        Thread thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Schedules a task to run once the given delay has passed, unless it's cancelled first.
+     * @param task The task to run
+     * @param delay How long to wait
+     * @param unit The units of the delay
+     * @return A handle that you can use to cancel the task
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit)
+    {
+        Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(delay));
+        pending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Ticks forever, sleeping between ticks.
+     */
+    private void run()
+    {
+        while (true)
+        {
+            long wakeUp = startNanos + (tick + 1) * tickNanos;
+            for (long wait = wakeUp - System.nanoTime(); wait > 0; wait = wakeUp - System.nanoTime())
+                LockSupport.parkNanos(this, wait);
+
+            tick++;
+            transferPending();
+            expire(buckets.get((int)(tick & MASK)));
+        }
+    }
+
+    /**
+     * Moves newly scheduled timeouts into the buckets for the ticks they're due in. Anything that's already due goes
+     * in the current bucket so that it fires right away.
+     */
+    private void transferPending()
+    {
+        for (Timeout timeout = pending.poll(); timeout != null; timeout = pending.poll())
+        {
+            if (timeout.isDone())
+                continue;
+
+            // Round up so that we never fire early
+            long dueTick = Math.max(tick, (timeout.deadlineNanos - startNanos + tickNanos - 1) / tickNanos);
+            timeout.rounds = (dueTick - tick) / WHEEL_SIZE;
+            buckets.get((int)(dueTick & MASK)).add(timeout);
+        }
+    }
+
+    /**
+     * Fires everything in the bucket that's due this time around, drops anything that was cancelled, and leaves the
+     * rest for a later lap of the wheel.
+     */
+    private void expire(List<Timeout> bucket)
+    {
+        int kept = 0;
+        for (Timeout timeout : bucket)
+        {
+            if (timeout.isDone())
+                continue;
+
+            if (timeout.rounds > 0)
+            {
+                timeout.rounds--;
+                bucket.set(kept++, timeout);
+                continue;
+            }
+
+            try
+            {
+                timeout.fire();
+            }
+            catch (RuntimeException e)
+            {
+                // One bad task can't be allowed to kill the thread that every other timeout depends on
+                e.printStackTrace();
+            }
+        }
+        bucket.subList(kept, bucket.size()).clear();
+    }
+
+    /**
+     * A task waiting on the wheel.
+     */
+    public static class Timeout
+    {
+        private final Runnable task;
+        private final long deadlineNanos;
+
+        // Set once the task has either run or been cancelled, so that only one of the two ever happens
+        private final AtomicBoolean done;
+
+        // Whole laps of the wheel left before this is due. Only touched by the wheel's thread.
+        private long rounds;
+
+        private Timeout(Runnable task, long deadlineNanos)
+        {
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+            this.done = new AtomicBoolean();
+        }
+
+        /**
+         * Makes sure the task never runs. The timeout stays in its bucket until the wheel gets around to it, but
+         * it's just skipped over at that point.
+         * @return True if we cancelled it, false if it had already run (or been cancelled)
+         */
+        public boolean cancel()
+        {
+            return done.compareAndSet(false, true);
+        }
+
+        /**
+         * @return Whether the task has already run or been cancelled
+         */
+        public boolean isDone()
+        {
+            return done.get();
+        }
+
+        private void fire()
+        {
+            if (done.compareAndSet(false, true))
+                task.run();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package web;
+
+import spark.ExceptionHandlerImpl;
+import spark.ExceptionMapper;
+import spark.Request;
+import spark.RequestResponseFactory;
+import spark.Response;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Sits in front of Spark's routing filter so that a route can switch its request into servlet async mode. Once that
+ * happens, we hide the response from Spark (it would otherwise write and close it as soon as the route returns) and
+ * write it ourselves when the route's future completes.
+ */
+class AsyncFilter implements Filter
+{
+    /** The request attribute that routes use to find the filter that's handling them */
+    static final String ATTRIBUTE = AsyncFilter.class.getName();
+
+    private static final String STARTED = AsyncFilter.class.getName() + ".started";
+    private static final String DEFAULT_CONTENT_TYPE = "text/html; charset=utf-8";
+    private static final String INTERNAL_ERROR = "<html><body><h2>500 Internal Server Error</h2></body></html>";
+
+    private final Filter spark;
+    private final ExceptionMapper exceptionMapper;
+
+    /**
+     * @param spark Spark's own routing filter
+     * @param exceptionMapper The exception handlers registered w/ Spark, so async failures get the same treatment
+     */
+    AsyncFilter(Filter spark, ExceptionMapper exceptionMapper)
+    {
+        this.spark = spark;
+        this.exceptionMapper = exceptionMapper;
+    }
+
+    @Override
+    public void init(FilterConfig config) throws ServletException
+    {
+        spark.init(config);
+    }
+
+    @Override
+    public void doFilter(ServletRequest req, ServletResponse res, FilterChain chain) throws IOException, ServletException
+    {
+        HttpServletRequest request = (HttpServletRequest)req;
+        request.setAttribute(ATTRIBUTE, this);
+        spark.doFilter(request, new AsyncAwareResponse(request, (HttpServletResponse)res), chain);
+    }
+
+    @Override
+    public void destroy()
+    {
+        spark.destroy();
+    }
+
+    /**
+     * Switches the request into async mode. The container won't finish the response when the route returns; it's on
+     * us to call <code>complete()</code> when the work is done.
+     * @param request The request being handled
+     * @return The async context to eventually complete
+     */
+    AsyncContext start(HttpServletRequest request)
+    {
+        AsyncContext context = request.startAsync();
+        context.setTimeout(0);
+        request.setAttribute(STARTED, Boolean.TRUE);
+        return context;
+    }
+
+    /**
+     * Writes the outcome of an async route and finishes the response.
+     * @param context The context returned by <code>start()</code>
+     * @param req The Spark request (passed along to exception handlers)
+     * @param value The value that the route's future completed w/ (if it was successful)
+     * @param error The error that the route's future failed w/ (if it wasn't successful)
+     */
+    void complete(AsyncContext context, Request req, Object value, Throwable error)
+    {
+        HttpServletResponse response = (HttpServletResponse)context.getResponse();
+        try
+        {
+            if (error == null)
+            {
+                write(response, value);
+            }
+            else
+            {
+                fail(req, response, error);
+            }
+        }
+        catch (Exception e)
+        {
+            if (!response.isCommitted())
+            {
+                response.setStatus(500);
+            }
+        }
+        finally
+        {
+            context.complete();
+        }
+    }
+
+    /**
+     * Runs the failure through whatever exception handler Spark would have used if the route had thrown it.
+     */
+    @SuppressWarnings("unchecked")
+    private void fail(Request req, HttpServletResponse response, Throwable error) throws IOException
+    {
+        Exception exception = (error instanceof Exception) ? (Exception)error : new CompletionException(error);
+        ExceptionHandlerImpl<Exception> handler = exceptionMapper.getHandler(exception);
+        if (handler == null)
+        {
+            response.setStatus(500);
+            write(response, INTERNAL_ERROR);
+            return;
+        }
+
+        Response errorResponse = RequestResponseFactory.create(response);
+        handler.handle(exception, req, errorResponse);
+        write(response, errorResponse.body());
+    }
+
+    private void write(HttpServletResponse response, Object body) throws IOException
+    {
+        if (response.getContentType() == null)
+        {
+            response.setContentType(DEFAULT_CONTENT_TYPE);
+        }
+        if (body instanceof StreamingBody)
+        {
+            ((StreamingBody)body).writeTo(response.getOutputStream());
+        }
+        else if (body != null)
+        {
+            response.getOutputStream().write(body.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * The response that Spark sees. Once the route has gone async, it reports itself as committed so that Spark
+     * leaves the body, status, and stream alone for us to deal with later.
+     */
+    private static class AsyncAwareResponse extends HttpServletResponseWrapper
+    {
+        private final HttpServletRequest request;
+
+        private AsyncAwareResponse(HttpServletRequest request, HttpServletResponse response)
+        {
+            super(response);
+            this.request = request;
+        }
+
+        @Override
+        public boolean isCommitted()
+        {
+            return (request.getAttribute(STARTED) != null) || super.isCommitted();
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package web;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import spark.ExceptionMapper;
+import spark.embeddedserver.EmbeddedServer;
+import spark.embeddedserver.EmbeddedServerFactory;
+import spark.embeddedserver.jetty.EmbeddedJettyServer;
+import spark.embeddedserver.jetty.JettyHandler;
+import spark.embeddedserver.jetty.JettyServerFactory;
+import spark.http.matching.MatcherFilter;
+import spark.route.Routes;
+import spark.staticfiles.StaticFilesConfiguration;
+
+/**
+ * Builds the exact same embedded Jetty server that Spark normally does, except that Spark's routing filter is wrapped
+ * in an <code>AsyncFilter</code> so that async routes can hand their response off to a servlet async context.
+ */
+class AsyncJettyFactory implements EmbeddedServerFactory
+{
+    @Override
+    public EmbeddedServer create(
+        Routes routes,
+        StaticFilesConfiguration staticFiles,
+        ExceptionMapper exceptionMapper,
+        boolean hasMultipleHandler)
+    {
+        MatcherFilter matcherFilter = new MatcherFilter(routes, staticFiles, exceptionMapper, false, hasMultipleHandler);
+        matcherFilter.init(null);
+
+        JettyHandler handler = new JettyHandler(new AsyncFilter(matcherFilter, exceptionMapper));
+        handler.getSessionCookieConfig().setHttpOnly(true);
+        return new EmbeddedJettyServer(new ServerFactory(), handler);
+    }
+
+    /**
+     * Spark's own server factory isn't public, so this mirrors it: a plain Jetty server on a queued thread pool.
+     */
+    private static class ServerFactory implements JettyServerFactory
+    {
+        @Override
+        public Server create(int maxThreads, int minThreads, int threadTimeoutMillis)
+        {
+            if (maxThreads <= 0)
+                return new Server();
+
+            return new Server(new QueuedThreadPool(
+                maxThreads,
+                (minThreads > 0) ? minThreads : 8,
+                (threadTimeoutMillis > 0) ? threadTimeoutMillis : 60000));
+        }
+
+        @Override
+        public Server create(ThreadPool threadPool)
+        {
+            return (threadPool == null) ? new Server() : new Server(threadPool);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package web;
+
+import spark.Request;
+import spark.Response;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The asynchronous flavor of Spark's <code>Route</code>. Rather than returning the response body, you return a future
+ * that resolves w/ the body whenever the work is actually done. Wrap these w/ <code>AsyncRoutes.async()</code> to
+ * register them w/ Spark.
+ */
+@FunctionalInterface
+public interface AsyncRoute
+{
+    /**
+     * Kicks off the work for a request without waiting for it to finish.
+     * @param req The incoming request
+     * @param res The outgoing response (feel free to set the status/type/headers before returning)
+     * @return A future that completes w/ the value to write as the response body
+     * @throws Exception If the route fails before it even gets its future going
+     */
+    CompletableFuture<?> handle(Request req, Response res) throws Exception;
+}
@@ -0,0 +1,75 @@
+package web;
+
+import spark.Route;
+import spark.embeddedserver.EmbeddedServers;
+import util.Futures;
+
+import javax.servlet.AsyncContext;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Lets Spark routes return futures without parking a Jetty thread until they complete. The route kicks off its work,
+ * the request is switched into servlet async mode, and the thread goes right back to the pool. Whichever thread
+ * completes the future is the one that writes the response.
+ */
+public class AsyncRoutes
+{
+    /**
+     * Swaps Spark's embedded Jetty factory for one that supports async routes. Call this before you define any
+     * routes; once Spark has started its server it's too late.
+     */
+    public static void install()
+    {
+        EmbeddedServers.add(EmbeddedServers.defaultIdentifier(), new AsyncJettyFactory());
+    }
+
+    /**
+     * Adapts an async route to a standard Spark route. If <code>install()</code> was never called (e.g. we're running
+     * in some other container), this falls back to joining the future on the request thread, so it still works; it
+     * just won't scale the same way.
+     * @param route The route whose future resolves w/ the response body
+     * @return A route you can hand to Spark
+     */
+    public static Route async(AsyncRoute route)
+    {
+        return (req, res) -> {
+            AsyncFilter filter = (AsyncFilter)req.raw().getAttribute(AsyncFilter.ATTRIBUTE);
+            if (filter == null)
+                return buffered(route.handle(req, res).join());
+
+            AsyncContext context = filter.start(req.raw());
+            CompletableFuture<?> future;
+            try
+            {
+                future = route.handle(req, res);
+            }
+            catch (Exception e)
+            {
+                future = Futures.error(e);
+            }
+
+            future.whenComplete((value, error) -> filter.complete(context, req, value, error));
+
+            // Spark needs *something* for the body, but the filter makes sure it never gets written
+            return "";
+        };
+    }
+
+    /**
+     * When we can't stream, we can at least still produce the body. Streaming bodies are written to a buffer that
+     * Spark can then send the usual way.
+     * @param body The value that a route's future completed w/
+     * @return Something that Spark knows how to write
+     */
+    private static Object buffered(Object body) throws IOException
+    {
+        if (!(body instanceof StreamingBody))
+            return body;
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        ((StreamingBody)body).writeTo(buffer);
+        return buffer.toByteArray();
+    }
+}
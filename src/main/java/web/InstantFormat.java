@@ -0,0 +1,82 @@
+package web;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import util.Utils;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Locale;
+
+/**
+ * How our JSON represents date/times. Pick one w/ <code>-Djson.instants=iso</code> (or whichever).
+ */
+public enum InstantFormat
+{
+    /**
+     * A plain number of milliseconds since the epoch (e.g. 1476720000000). Cheapest to write; it's just a long.
+     */
+    EPOCH_MILLIS
+    {
+        @Override
+        void write(JsonWriter writer, Instant instant) throws IOException
+        {
+            writer.value(instant.toEpochMilli());
+        }
+
+        @Override
+        Instant read(JsonReader reader) throws IOException
+        {
+            return Instant.ofEpochMilli(reader.nextLong());
+        }
+    },
+
+    /**
+     * An ISO-8601 string in UTC (e.g. "2016-10-17T16:00:00.123Z"). Easier on human eyes, but costs a string apiece.
+     */
+    ISO
+    {
+        @Override
+        void write(JsonWriter writer, Instant instant) throws IOException
+        {
+            writer.value(instant.toString());
+        }
+
+        @Override
+        Instant read(JsonReader reader) throws IOException
+        {
+            return Instant.parse(reader.nextString());
+        }
+    };
+
+    /** The system property used to pick a format */
+    public static final String FORMAT_PROPERTY = "json.instants";
+
+    /**
+     * Writes a non-null instant as a single JSON value.
+     * @param writer The writer to write to
+     * @param instant The date/time to write
+     * @throws IOException If the writer fails
+     */
+    abstract void write(JsonWriter writer, Instant instant) throws IOException;
+
+    /**
+     * Reads a single (non-null) JSON value written in this format.
+     * @param reader The reader positioned at the value
+     * @return The parsed date/time
+     * @throws IOException If the reader fails or the value is malformed
+     */
+    abstract Instant read(JsonReader reader) throws IOException;
+
+    /**
+     * Looks at the "json.instants" system property to figure out which format to use.
+     * @return The configured format or EPOCH_MILLIS if none was specified
+     */
+    public static InstantFormat fromSystemProperty()
+    {
+        String name = System.getProperty(FORMAT_PROPERTY);
+        return Utils.hasValue(name)
+            ? valueOf(name.trim().toUpperCase(Locale.ROOT))
+            : EPOCH_MILLIS;
+    }
+}
@@ -0,0 +1,66 @@
+package web;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import spark.Request;
+import spark.Response;
+
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Function;
+
+/**
+ * Renders route results as JSON that streams straight to the client. Gson walks the value and pushes each token out
+ * through a <code>JsonWriter</code> as it goes, so even a huge order history never exists as one giant string.
+ * <p>
+ * Output is compact by default. Add "?pretty" to a request's query string if you're a human who wants to read it.
+ */
+public class JsonResponses
+{
+    private static final String CONTENT_TYPE = "application/json; charset=utf-8";
+    private static final String PRETTY_PARAM = "pretty";
+    private static final String INDENT = "  ";
+
+    private final Gson gson;
+
+    /**
+     * @param gson The (non-pretty) Gson config to serialize values with
+     */
+    public JsonResponses(Gson gson)
+    {
+        this.gson = gson;
+    }
+
+    /**
+     * Creates a function that turns a route's result into a streaming JSON body, typically used as the last step of
+     * an async route's chain (e.g. <code>.thenApply(json.render(req, res))</code>).
+     * @param req The request being handled (we check it for "?pretty")
+     * @param res The response that the body will be written to
+     * @return A function that converts a value to its JSON body
+     */
+    public <T> Function<T, StreamingBody> render(Request req, Response res)
+    {
+        boolean pretty = isPretty(req);
+        res.type(CONTENT_TYPE);
+
+        return value -> out -> {
+            JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)));
+            if (pretty)
+            {
+                writer.setIndent(INDENT);
+            }
+            gson.toJson(value, (value == null) ? Object.class : value.getClass(), writer);
+            writer.flush();
+        };
+    }
+
+    /**
+     * Pretty printing is on for "?pretty" and "?pretty=true", but not for "?pretty=false" (or no param at all).
+     */
+    private static boolean isPretty(Request req)
+    {
+        String pretty = req.queryParams(PRETTY_PARAM);
+        return (pretty != null) && !"false".equalsIgnoreCase(pretty);
+    }
+}
@@ -0,0 +1,254 @@
+package web;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import model.BusinessObject;
+import model.Order;
+import model.Product;
+import model.User;
+import util.OrderStatus;
+
+import java.io.IOException;
+import java.time.Instant;
+
+/**
+ * Hand-written Gson adapters for all of our models. Out of the box, Gson serializes them by reflecting over their
+ * fields on every single write (and boxes every long along the way). These just call the getters and write each value
+ * straight to the <code>JsonWriter</code>. They produce the same field names as the reflective versions, and just like
+ * Gson's defaults, null fields are left out.
+ * <p>
+ * If you add a field to a model, add it here too or it won't show up in the API.
+ */
+public class ModelAdapters
+{
+    /**
+     * Registers the adapters for every model type (plus <code>Instant</code> on its own) w/ the given builder. This is
+     * the one place that our models' JSON format is decided.
+     * @param builder The Gson config to add our adapters to
+     * @param instants How date/times should be written
+     * @return The same builder, for chaining
+     */
+    public static GsonBuilder register(GsonBuilder builder, InstantFormat instants)
+    {
+        UserAdapter users = new UserAdapter();
+        ProductAdapter products = new ProductAdapter();
+        return builder
+            .registerTypeAdapter(User.class, users.nullSafe())
+            // Covers subclasses too, e.g. the views handed out by the off-heap product table
+            .registerTypeHierarchyAdapter(Product.class, products.nullSafe())
+            .registerTypeAdapter(Order.class, new OrderAdapter(users, products, instants).nullSafe())
+            .registerTypeAdapter(Instant.class, new InstantAdapter(instants).nullSafe());
+    }
+
+    /**
+     * Skips a null value that we're about to read so that the caller can leave the field unset.
+     * @return True if the value was null (and has been consumed)
+     */
+    private static boolean skipNull(JsonReader reader) throws IOException
+    {
+        if (reader.peek() != JsonToken.NULL)
+            return false;
+
+        reader.nextNull();
+        return true;
+    }
+
+    private static String nextString(JsonReader reader) throws IOException
+    {
+        return skipNull(reader) ? null : reader.nextString();
+    }
+
+    /**
+     * Ids are longs everywhere behind the API, but we keep writing them as JSON strings so that clients don't have to
+     * care (and never lose precision in a JavaScript number). A record that hasn't been saved yet has no id at all.
+     */
+    private static void writeId(JsonWriter writer, long id) throws IOException
+    {
+        if (id != BusinessObject.NO_ID)
+            writer.name("id").value(Long.toString(id));
+    }
+
+    /**
+     * Reads an id written by <code>writeId()</code>, though a plain JSON number works too.
+     */
+    private static long nextId(JsonReader reader) throws IOException
+    {
+        return skipNull(reader) ? BusinessObject.NO_ID : reader.nextLong();
+    }
+
+    private static class UserAdapter extends TypeAdapter<User>
+    {
+        @Override
+        public void write(JsonWriter out, User user) throws IOException
+        {
+            out.beginObject();
+            writeId(out, user.getId());
+            out.name("firstName").value(user.getFirstName());
+            out.name("lastName").value(user.getLastName());
+            out.name("address").value(user.getAddress());
+            out.name("city").value(user.getCity());
+            out.name("state").value(user.getState());
+            out.name("postalCode").value(user.getPostalCode());
+            out.endObject();
+        }
+
+        @Override
+        public User read(JsonReader in) throws IOException
+        {
+            User user = new User();
+            in.beginObject();
+            while (in.hasNext())
+            {
+                switch (in.nextName())
+                {
+                    case "id": user.setId(nextId(in)); break;
+                    case "firstName": user.setFirstName(nextString(in)); break;
+                    case "lastName": user.setLastName(nextString(in)); break;
+                    case "address": user.setAddress(nextString(in)); break;
+                    case "city": user.setCity(nextString(in)); break;
+                    case "state": user.setState(nextString(in)); break;
+                    case "postalCode": user.setPostalCode(nextString(in)); break;
+                    default: in.skipValue();
+                }
+            }
+            in.endObject();
+            return user;
+        }
+    }
+
+    private static class ProductAdapter extends TypeAdapter<Product>
+    {
+        @Override
+        public void write(JsonWriter out, Product product) throws IOException
+        {
+            out.beginObject();
+            writeId(out, product.getId());
+            out.name("name").value(product.getName());
+            out.name("category").value(product.getCategory());
+            out.name("price").value(product.getPrice());
+            out.endObject();
+        }
+
+        @Override
+        public Product read(JsonReader in) throws IOException
+        {
+            Product product = new Product();
+            in.beginObject();
+            while (in.hasNext())
+            {
+                switch (in.nextName())
+                {
+                    case "id": product.setId(nextId(in)); break;
+                    case "name": product.setName(nextString(in)); break;
+                    case "category": product.setCategory(nextString(in)); break;
+                    case "price": product.setPrice(in.nextLong()); break;
+                    default: in.skipValue();
+                }
+            }
+            in.endObject();
+            return product;
+        }
+    }
+
+    /**
+     * Writes the order's user and product in full using the other adapters directly, so there's no lookup by type
+     * for the nested objects either.
+     */
+    private static class OrderAdapter extends TypeAdapter<Order>
+    {
+        private final UserAdapter users;
+        private final ProductAdapter products;
+        private final InstantFormat instants;
+
+        private OrderAdapter(UserAdapter users, ProductAdapter products, InstantFormat instants)
+        {
+            this.users = users;
+            this.products = products;
+            this.instants = instants;
+        }
+
+        @Override
+        public void write(JsonWriter out, Order order) throws IOException
+        {
+            out.beginObject();
+            writeId(out, order.getId());
+            if (order.getUser() != null)
+            {
+                users.write(out.name("user"), order.getUser());
+            }
+            if (order.getProduct() != null)
+            {
+                products.write(out.name("product"), order.getProduct());
+            }
+            out.name("salesTax").value(order.getSalesTax());
+            if (order.getDateTime() != null)
+            {
+                instants.write(out.name("dateTime"), order.getDateTime());
+            }
+            if (order.getDateTimeDelivered() != null)
+            {
+                instants.write(out.name("dateTimeDelivered"), order.getDateTimeDelivered());
+            }
+            if (order.getStatus() != null)
+            {
+                out.name("status").value(order.getStatus().name());
+            }
+            out.endObject();
+        }
+
+        @Override
+        public Order read(JsonReader in) throws IOException
+        {
+            Order order = new Order();
+            in.beginObject();
+            while (in.hasNext())
+            {
+                String name = in.nextName();
+                if (skipNull(in))
+                    continue;
+
+                switch (name)
+                {
+                    case "id": order.setId(nextId(in)); break;
+                    case "user": order.setUser(users.read(in)); break;
+                    case "product": order.setProduct(products.read(in)); break;
+                    case "salesTax": order.setSalesTax(in.nextLong()); break;
+                    case "dateTime": order.setDateTime(instants.read(in)); break;
+                    case "dateTimeDelivered": order.setDateTimeDelivered(instants.read(in)); break;
+                    case "status": order.setStatus(OrderStatus.valueOf(in.nextString())); break;
+                    default: in.skipValue();
+                }
+            }
+            in.endObject();
+            return order;
+        }
+    }
+
+    /**
+     * For any <code>Instant</code> that shows up outside of our models.
+     */
+    private static class InstantAdapter extends TypeAdapter<Instant>
+    {
+        private final InstantFormat format;
+
+        private InstantAdapter(InstantFormat format)
+        {
+            this.format = format;
+        }
+
+        @Override
+        public void write(JsonWriter out, Instant instant) throws IOException
+        {
+            format.write(out, instant);
+        }
+
+        @Override
+        public Instant read(JsonReader in) throws IOException
+        {
+            return format.read(in);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package web;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A response body that writes itself straight to the response's output stream rather than being built up as one big
+ * string first. Have an async route's future complete w/ one of these when the body could get large.
+ */
+@FunctionalInterface
+public interface StreamingBody
+{
+    /**
+     * Writes the whole body. Don't close the stream; the server takes care of that once the response is done.
+     * @param out The response's output stream
+     * @throws IOException If the client goes away or the stream otherwise fails
+     */
+    void writeTo(OutputStream out) throws IOException;
+}